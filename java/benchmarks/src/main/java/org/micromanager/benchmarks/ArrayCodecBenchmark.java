@@ -0,0 +1,99 @@
+package org.micromanager.benchmarks;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.internal.zmq.ZMQUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of primitive arrays (i.e. pixels), both as Base64
+ * strings inside the JSON message and as raw binary frames
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArrayCodecBenchmark {
+
+   //number of bytes in the array
+   @Param({"1024", "65536", "1048576", "8388608"})
+   public int size;
+
+   @Param({"byte", "short", "int", "float", "double"})
+   public String dtype;
+
+   private Object array_;
+   private Class arrayClass_;
+   private String base64_;
+   private byte[] bytes_;
+   private JSONObject binaryHeader_;
+   private List<byte[]> binaryFrames_;
+
+   @Setup
+   public void setup() throws JSONException {
+      Random random = new Random(0);
+      byte[] raw = new byte[size];
+      random.nextBytes(raw);
+      arrayClass_ = ZMQUtil.ARRAY_NAME_CLASS_MAP.get(dtype + "-array");
+      array_ = ZMQUtil.fromByteArray(raw, arrayClass_, ByteOrder.nativeOrder());
+      base64_ = ZMQUtil.encodeArray(array_);
+      bytes_ = ZMQUtil.toByteArray(array_, ByteOrder.nativeOrder());
+      binaryFrames_ = new ArrayList<byte[]>();
+      binaryHeader_ = ZMQUtil.toJSON(array_, binaryFrames_);
+   }
+
+   @Benchmark
+   public String encodeBase64() {
+      return ZMQUtil.encodeArray(array_);
+   }
+
+   @Benchmark
+   public Object decodeBase64() {
+      return ZMQUtil.decodeArray(base64_, arrayClass_);
+   }
+
+   @Benchmark
+   public byte[] encodeBinary() {
+      return ZMQUtil.toByteArray(array_, ByteOrder.nativeOrder());
+   }
+
+   @Benchmark
+   public Object decodeBinary() {
+      return ZMQUtil.fromByteArray(bytes_, arrayClass_, ByteOrder.nativeOrder());
+   }
+
+   @Benchmark
+   public JSONObject toJSONBase64() {
+      return ZMQUtil.toJSON(array_);
+   }
+
+   @Benchmark
+   public List<byte[]> toJSONBinary() {
+      List<byte[]> frames = new ArrayList<byte[]>(1);
+      ZMQUtil.toJSON(array_, frames);
+      return frames;
+   }
+
+   @Benchmark
+   public Object decodeBinaryHeader() throws JSONException {
+      return ZMQUtil.decodeArray(binaryHeader_, binaryFrames_);
+   }
+
+}
@@ -0,0 +1,90 @@
+package org.micromanager.benchmarks;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.util.function.Function;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.internal.zmq.ZMQServer;
+import org.zeromq.ZContext;
+
+/**
+ * Server that hands out the given objects when a client constructs their
+ * class, the way the core is handed out in Micro-Manager, and that can also
+ * run commands without going through its socket
+ */
+public class BenchmarkServer extends ZMQServer {
+
+   /**
+    * Single threaded REP server
+    *
+    * @param exported object handed out to clients constructing its class, or null
+    */
+   public BenchmarkServer(Object exported)
+           throws URISyntaxException, UnsupportedEncodingException {
+      super(BenchmarkServer.class.getClassLoader(), classMapper(exported), new String[0]);
+   }
+
+   /**
+    * Concurrent ROUTER server
+    */
+   public BenchmarkServer(Object exported, int numWorkers, Ordering ordering)
+           throws URISyntaxException, UnsupportedEncodingException {
+      super(BenchmarkServer.class.getClassLoader(), classMapper(exported), new String[0],
+              numWorkers, ordering);
+   }
+
+   private static Function<Class, Object> classMapper(Object exported) {
+      return (Class c) -> exported != null && c == exported.getClass() ? exported : null;
+   }
+
+   /**
+    * Context the server sockets live in, needed to connect over inproc
+    */
+   public static ZContext getContext() {
+      return context_;
+   }
+
+   /**
+    * Run a command as if it was received on the socket
+    */
+   public byte[] execute(JSONObject command) throws Exception {
+      return parseAndExecuteCommand(command.toString());
+   }
+
+   public byte[] execute(String command) throws Exception {
+      return parseAndExecuteCommand(command);
+   }
+
+   /**
+    * The command a client sends to get the exported object of the given class
+    */
+   public static JSONObject constructorCommand(Class clazz) throws JSONException {
+      JSONObject command = new JSONObject();
+      command.put("command", "constructor");
+      command.put("classpath", clazz.getName());
+      command.put("arguments", new JSONArray());
+      command.put("argument-types", new JSONArray());
+      return command;
+   }
+
+   public static JSONObject destructorCommand(long handle) throws JSONException {
+      JSONObject command = new JSONObject();
+      command.put("command", "destructor");
+      command.put("handle", handle);
+      return command;
+   }
+
+   /**
+    * @return the handle of the exported object of the given class
+    */
+   public long export(Class clazz) throws Exception {
+      return new JSONObject(new String(execute(constructorCommand(clazz)))).getLong("handle");
+   }
+
+   public void release(long handle) throws Exception {
+      execute(destructorCommand(handle));
+   }
+
+}
@@ -0,0 +1,46 @@
+package org.micromanager.benchmarks;
+
+/**
+ * Stand in for the objects (mostly the core) whose methods are called most
+ * often during acquisition
+ */
+public class BenchmarkTarget {
+
+   private double exposure_;
+   private double x_, y_;
+   private short[] pixels_ = new short[0];
+
+   public void setExposure(double exposure) {
+      exposure_ = exposure;
+   }
+
+   public double getExposure() {
+      return exposure_;
+   }
+
+   public String getProperty(String device, String property) {
+      return property;
+   }
+
+   public void setXYPosition(double x, double y) {
+      x_ = x;
+      y_ = y;
+   }
+
+   public boolean isSameObject(Object o) {
+      return o == this;
+   }
+
+   public void setPixels(short[] pixels) {
+      pixels_ = pixels;
+   }
+
+   public short[] getPixels() {
+      return pixels_;
+   }
+
+   public BenchmarkTarget getSelf() {
+      return this;
+   }
+
+}
@@ -0,0 +1,76 @@
+package org.micromanager.benchmarks;
+
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.internal.zmq.BufferPool;
+import org.micromanager.internal.zmq.ZMQUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding a stream of same sized images with and without reusing arrays
+ * from the BufferPool. Run with -prof gc to compare allocation rates and
+ * collection counts, e.g. java -jar benchmarks.jar BufferPool -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferPoolBenchmark {
+
+   //number of bytes in the image
+   @Param({"524288", "8388608"})
+   public int size;
+
+   @Param({"true", "false"})
+   public boolean pooled;
+
+   private byte[] raw_;
+   private String base64_;
+
+   @Setup
+   public void setup() {
+      Random random = new Random(0);
+      raw_ = new byte[size];
+      random.nextBytes(raw_);
+      base64_ = ZMQUtil.encodeArray(ZMQUtil.fromByteArray(raw_, short[].class,
+              ByteOrder.nativeOrder()));
+      BufferPool.getDefault().setMaxBytes(pooled ? 512L * 1024 * 1024 : 0);
+   }
+
+   @TearDown
+   public void tearDown() {
+      BufferPool.getDefault().setMaxBytes(512L * 1024 * 1024);
+   }
+
+   @Benchmark
+   public short decodeBinary() {
+      short[] pixels = (short[]) ZMQUtil.fromByteArray(raw_, short[].class, ByteOrder.nativeOrder());
+      short first = pixels[0];
+      //done with the image, as after it is pushed to python
+      BufferPool.getDefault().release(pixels);
+      return first;
+   }
+
+   @Benchmark
+   public short decodeBase64() {
+      short[] pixels = (short[]) ZMQUtil.decodeArray(base64_, short[].class);
+      short first = pixels[0];
+      BufferPool.getDefault().release(pixels);
+      return first;
+   }
+
+}
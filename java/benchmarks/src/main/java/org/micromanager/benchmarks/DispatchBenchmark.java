@@ -0,0 +1,112 @@
+package org.micromanager.benchmarks;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Method dispatch: a plain reflective lookup and call as the baseline, and a
+ * full run-method command (parse, resolve, call, serialize the result)
+ * without the socket
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+   private static final String[] GET_PROPERTY_TYPES = {"java.lang.String", "java.lang.String"};
+
+   private BenchmarkServer server_;
+   private BenchmarkTarget target_;
+   private long handle_;
+   private double exposure_;
+
+   private String primitiveCommand_;
+   private String stringCommand_;
+   private String objectCommand_;
+   private String returnObjectCommand_;
+
+   @Setup
+   public void setup() throws Exception {
+      target_ = new BenchmarkTarget();
+      server_ = new BenchmarkServer(target_);
+      handle_ = server_.export(BenchmarkTarget.class);
+
+      JSONObject shadow = new JSONObject();
+      shadow.put("handle", handle_);
+      primitiveCommand_ = runMethodCommand("setExposure", new String[]{"double"}, 10.5);
+      stringCommand_ = runMethodCommand("getProperty", GET_PROPERTY_TYPES, "Camera", "Binning");
+      objectCommand_ = runMethodCommand("isSameObject", new String[]{"java.lang.Object"}, shadow);
+      returnObjectCommand_ = runMethodCommand("getSelf", new String[0]);
+   }
+
+   @TearDown
+   public void tearDown() throws Exception {
+      server_.release(handle_);
+      server_.close();
+   }
+
+   private String runMethodCommand(String name, String[] argTypes, Object... args)
+           throws JSONException {
+      JSONObject command = new JSONObject();
+      command.put("command", "run-method");
+      command.put("handle", handle_);
+      command.put("name", name);
+      command.put("arguments", new JSONArray(Arrays.asList(args)));
+      command.put("argument-types", new JSONArray(Arrays.asList(argTypes)));
+      return command.toString();
+   }
+
+   @Benchmark
+   public Object reflectivePrimitive() throws Exception {
+      Method m = target_.getClass().getMethod("setExposure", double.class);
+      return m.invoke(target_, exposure_++);
+   }
+
+   @Benchmark
+   public Object reflectiveString() throws Exception {
+      Method m = target_.getClass().getMethod("getProperty", String.class, String.class);
+      return m.invoke(target_, "Camera", "Binning");
+   }
+
+   @Benchmark
+   public byte[] commandPrimitiveArgument() throws Exception {
+      return server_.execute(primitiveCommand_);
+   }
+
+   @Benchmark
+   public byte[] commandStringArguments() throws Exception {
+      return server_.execute(stringCommand_);
+   }
+
+   @Benchmark
+   public byte[] commandObjectArgument() throws Exception {
+      return server_.execute(objectCommand_);
+   }
+
+   //includes the destructor command that releases the returned shadow again
+   @Benchmark
+   public byte[] commandObjectResult() throws Exception {
+      byte[] reply = server_.execute(returnObjectCommand_);
+      server_.release(new JSONObject(new String(reply)).getLong("handle"));
+      return reply;
+   }
+
+}
@@ -0,0 +1,141 @@
+package org.micromanager.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.internal.zmq.SocketProfile;
+import org.micromanager.internal.zmq.ZMQServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zeromq.SocketType;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+
+/**
+ * Round trips from a REQ client to a server in the same process, with the
+ * single threaded REP server and the concurrent ROUTER server, over each
+ * transport
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+
+   @Param({"REP", "ROUTER"})
+   public String server;
+
+   @Param({"TCP", "INPROC"})
+   public String transport;
+
+   //size of the pixel array returned by getPixels
+   @Param({"65536", "8388608"})
+   public int pixelBytes;
+
+   private BenchmarkServer server_;
+   private SocketProfile previousProfile_;
+   private ZContext context_;
+   private ZMQ.Socket client_;
+   private long handle_;
+   private byte[] setExposureCommand_;
+   private byte[] getPixelsBase64Command_;
+   private byte[] getPixelsBinaryCommand_;
+
+   @Setup
+   public void setup() throws Exception {
+      BenchmarkTarget target = new BenchmarkTarget();
+      target.setPixels(new short[pixelBytes / 2]);
+      previousProfile_ = SocketProfile.getProfile(SocketProfile.Role.CONTROL);
+      SocketProfile.setProfile(SocketProfile.Role.CONTROL, previousProfile_.copy()
+              .setTransport(SocketProfile.Transport.valueOf(transport)));
+      if (server.equals("REP")) {
+         server_ = new BenchmarkServer(target);
+      } else {
+         server_ = new BenchmarkServer(target, 2, ZMQServer.Ordering.NONE);
+      }
+
+      //inproc endpoints only exist within the context they were bound in
+      context_ = transport.equals("INPROC") ? null : new ZContext();
+      client_ = (context_ == null ? BenchmarkServer.getContext() : context_)
+              .createSocket(SocketType.REQ);
+      client_.connect(server_.getAddress());
+      //get the target the way a client gets the core
+      client_.send(BenchmarkServer.constructorCommand(BenchmarkTarget.class).toString());
+      handle_ = new JSONObject(client_.recvStr()).getLong("handle");
+
+      setExposureCommand_ = runMethodCommand("setExposure", false, 10.5, "double");
+      getPixelsBase64Command_ = runMethodCommand("getPixels", false);
+      getPixelsBinaryCommand_ = runMethodCommand("getPixels", true);
+   }
+
+   @TearDown
+   public void tearDown() throws JSONException {
+      client_.send(BenchmarkServer.destructorCommand(handle_).toString());
+      client_.recv();
+      client_.close();
+      if (context_ != null) {
+         context_.close();
+      }
+      server_.close();
+      SocketProfile.setProfile(SocketProfile.Role.CONTROL, previousProfile_);
+   }
+
+   /**
+    * @param args alternating argument values and type names
+    */
+   private byte[] runMethodCommand(String name, boolean binaryArrays, Object... args)
+           throws JSONException {
+      JSONArray arguments = new JSONArray();
+      JSONArray argumentTypes = new JSONArray();
+      for (int i = 0; i < args.length; i += 2) {
+         arguments.put(args[i]);
+         argumentTypes.put(args[i + 1]);
+      }
+      JSONObject command = new JSONObject();
+      command.put("command", "run-method");
+      command.put("handle", handle_);
+      command.put("name", name);
+      command.put("arguments", arguments);
+      command.put("argument-types", argumentTypes);
+      command.put("binary-arrays", binaryArrays);
+      return command.toString().getBytes();
+   }
+
+   private int roundTrip(byte[] command) {
+      client_.send(command);
+      int received = client_.recv().length;
+      while (client_.hasReceiveMore()) {
+         received += client_.recv().length;
+      }
+      return received;
+   }
+
+   @Benchmark
+   public int smallCall() {
+      return roundTrip(setExposureCommand_);
+   }
+
+   @Benchmark
+   public int arrayResultBase64() {
+      return roundTrip(getPixelsBase64Command_);
+   }
+
+   @Benchmark
+   public int arrayResultBinary() {
+      return roundTrip(getPixelsBinaryCommand_);
+   }
+
+}
@@ -0,0 +1,90 @@
+package org.micromanager.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.internal.zmq.ZMQServer;
+import org.micromanager.internal.zmq.ZMQUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of method results: objects sent out as shadows (with the full
+ * API description or only a class reference) and directly serialized values.
+ *
+ * Shadow benchmarks release the exported object again with a destructor
+ * command, so their time includes running that command
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializeBenchmark {
+
+   private static final int PORT = ZMQServer.DEFAULT_MASTER_PORT_NUMBER;
+
+   private ZMQUtil util_;
+   private BenchmarkServer server_;
+   private BenchmarkTarget target_;
+
+   @Setup
+   public void setup() throws Exception {
+      util_ = new ZMQUtil(getClass().getClassLoader(), new String[0]);
+      server_ = new BenchmarkServer(null);
+      target_ = new BenchmarkTarget();
+   }
+
+   @TearDown
+   public void tearDown() {
+      server_.close();
+   }
+
+   @Benchmark
+   public JSONObject shadowObjectWithAPI() throws Exception {
+      JSONObject json = new JSONObject();
+      util_.serialize(target_, json, PORT, null, false);
+      server_.release(json.getLong("handle"));
+      return json;
+   }
+
+   @Benchmark
+   public JSONObject shadowObjectWithClassReference() throws Exception {
+      JSONObject json = new JSONObject();
+      util_.serialize(target_, json, PORT, null, true);
+      server_.release(json.getLong("handle"));
+      return json;
+   }
+
+   @Benchmark
+   public JSONObject primitive() {
+      JSONObject json = new JSONObject();
+      util_.serialize(12.5, json, PORT);
+      return json;
+   }
+
+   @Benchmark
+   public JSONObject string() {
+      JSONObject json = new JSONObject();
+      util_.serialize("Camera", json, PORT);
+      return json;
+   }
+
+   @Benchmark
+   public String shadowObjectToString() throws Exception {
+      JSONObject json = new JSONObject();
+      util_.serialize(target_, json, PORT, null, false);
+      server_.release(json.getLong("handle"));
+      return json.toString();
+   }
+
+}
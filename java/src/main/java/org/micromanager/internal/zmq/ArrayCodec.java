@@ -0,0 +1,31 @@
+package org.micromanager.internal.zmq;
+
+/**
+ * Lossless transformation of the raw bytes of a primitive array before it is
+ * sent as a binary frame (e.g. compression). The name of the codec and the
+ * uncompressed size are sent in the array header ("codec" and "nbytes"), so
+ * the receiver can decode it
+ */
+public interface ArrayCodec {
+
+   /**
+    * @return name used to negotiate the codec and to mark encoded arrays
+    */
+   public String getName();
+
+   /**
+    * @param raw bytes of the array
+    * @param elementSize bytes per element of the array
+    * @return encoded bytes
+    */
+   public byte[] encode(byte[] raw, int elementSize);
+
+   /**
+    * @param encoded bytes produced by encode
+    * @param elementSize bytes per element of the array
+    * @param rawLength size of the original bytes
+    * @return the original bytes
+    */
+   public byte[] decode(byte[] encoded, int elementSize, int rawLength);
+
+}
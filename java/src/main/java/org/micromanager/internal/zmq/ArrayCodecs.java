@@ -0,0 +1,63 @@
+package org.micromanager.internal.zmq;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONException;
+
+/**
+ * Codecs that can be used for binary array frames, by name
+ */
+public class ArrayCodecs {
+
+   private static final ConcurrentHashMap<String, ArrayCodec> CODECS
+           = new ConcurrentHashMap<String, ArrayCodec>();
+
+   static {
+      register(new ShuffleDeltaLZ4Codec());
+   }
+
+   public static void register(ArrayCodec codec) {
+      CODECS.put(codec.getName(), codec);
+   }
+
+   /**
+    * @param name
+    * @return the codec, or null if there is none with this name
+    */
+   public static ArrayCodec get(String name) {
+      return CODECS.get(name);
+   }
+
+   /**
+    * @return names of all codecs, to offer to the other side of a connection
+    */
+   public static JSONArray getNames() {
+      return new JSONArray(getNameSet());
+   }
+
+   /**
+    * @return names of all codecs
+    */
+   public static Set<String> getNameSet() {
+      return Collections.unmodifiableSet(CODECS.keySet());
+   }
+
+   /**
+    * @param offered names of codecs the other side supports, in order of
+    * preference
+    * @return the first one also supported here, or null if there is none
+    * @throws JSONException
+    */
+   public static ArrayCodec negotiate(JSONArray offered) throws JSONException {
+      for (int i = 0; i < offered.length(); i++) {
+         ArrayCodec codec = CODECS.get(offered.getString(i));
+         if (codec != null) {
+            return codec;
+         }
+      }
+      return null;
+   }
+
+}
@@ -0,0 +1,208 @@
+package org.micromanager.internal.zmq;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+
+/**
+ * Primitive arrays kept for reuse, so that decoding a stream of images of the
+ * same size doesn't allocate (and leave the garbage collector to free) new
+ * arrays for every one. Arrays are bucketed by class and exact length, since
+ * images have to be exactly the right length. Scratch byte arrays that only
+ * need to be big enough come from buckets of powers of two.
+ *
+ * Whoever takes an array owns it, and should release it once nothing refers
+ * to it any more. Arrays that are never released are simply garbage collected.
+ * Releasing an array that is still in use is a bug, since it will be handed
+ * out again and overwritten.
+ *
+ * Arrays decoded by ZMQUtil (decodeArray, fromByteArray) and SharedMemoryRing
+ * come from this pool. The places that release them are the ones that know
+ * the last use of the array:
+ * <ul>
+ * <li>ZMQUtil and the codecs, for their own scratch arrays</li>
+ * <li>ZMQServer, for arrays decoded from batch results and encoded again</li>
+ * <li>RemoteImageProcessor, once an image's pixels have been copied into
+ * the message sent to python (not byte arrays sent as binary frames, which
+ * JeroMQ holds on to until sent)</li>
+ * </ul>
+ * Images handed on to the acquisition engine, storage or the viewer are
+ * never released, since those may hold on to the pixels (e.g. storage
+ * writes them on a thread of its own and keeps them to show until written)
+ * and they are left to the garbage collector
+ */
+public class BufferPool {
+
+   private static final BufferPool DEFAULT = new BufferPool(512L * 1024 * 1024);
+
+   //Arrays smaller than this are cheaper to allocate than to pool
+   private static final int MIN_POOLED_BYTES = 4096;
+
+   private final ConcurrentHashMap<BucketKey, ConcurrentLinkedDeque<Object>> buckets_
+           = new ConcurrentHashMap<BucketKey, ConcurrentLinkedDeque<Object>>();
+   private volatile long maxBytes_;
+   private final AtomicLong pooledBytes_ = new AtomicLong();
+   private final AtomicLong allocations_ = new AtomicLong();
+   private final AtomicLong allocatedBytes_ = new AtomicLong();
+   private final AtomicLong reuses_ = new AtomicLong();
+   private final AtomicLong discards_ = new AtomicLong();
+
+   /**
+    * @param maxBytes most memory held by arrays waiting to be reused
+    */
+   public BufferPool(long maxBytes) {
+      maxBytes_ = maxBytes;
+   }
+
+   /**
+    * @return pool shared by the encoding and decoding of arrays in ZMQUtil
+    */
+   public static BufferPool getDefault() {
+      return DEFAULT;
+   }
+
+   /**
+    * @param maxBytes most memory held by arrays waiting to be reused, 0 to
+    * stop pooling
+    */
+   public void setMaxBytes(long maxBytes) {
+      maxBytes_ = maxBytes;
+      if (maxBytes <= 0) {
+         clear();
+      }
+   }
+
+   /**
+    * @param arrayClass class of primitive array
+    * @param length
+    * @return array of exactly this length, with undefined contents
+    */
+   public Object take(Class arrayClass, int length) {
+      Object array = poll(new BucketKey(arrayClass, length));
+      if (array != null) {
+         return array;
+      }
+      allocations_.incrementAndGet();
+      allocatedBytes_.addAndGet((long) length * ZMQUtil.getElementSize(arrayClass));
+      return Array.newInstance(arrayClass.getComponentType(), length);
+   }
+
+   /**
+    * @param minLength
+    * @return byte array at least this long, with undefined contents
+    */
+   public byte[] takeScratch(int minLength) {
+      int length = minLength <= MIN_POOLED_BYTES ? minLength
+              : Integer.highestOneBit(minLength - 1) << 1;
+      if (length < 0) {
+         length = minLength; //too big to round up
+      }
+      return (byte[]) take(byte[].class, length);
+   }
+
+   /**
+    * Make an array available to be taken again
+    *
+    * @param array primitive array that is no longer used by anything
+    */
+   public void release(Object array) {
+      if (array == null || !ZMQUtil.ARRAY_CLASS_NAME_MAP.containsKey(array.getClass())) {
+         return;
+      }
+      int length = Array.getLength(array);
+      long numBytes = (long) length * ZMQUtil.getElementSize(array.getClass());
+      if (numBytes < MIN_POOLED_BYTES || pooledBytes_.addAndGet(numBytes) > maxBytes_) {
+         if (numBytes >= MIN_POOLED_BYTES) {
+            pooledBytes_.addAndGet(-numBytes);
+         }
+         discards_.incrementAndGet();
+         return;
+      }
+      buckets_.computeIfAbsent(new BucketKey(array.getClass(), length),
+              (BucketKey k) -> new ConcurrentLinkedDeque<Object>()).push(array);
+   }
+
+   /**
+    * Drop all arrays waiting to be reused
+    */
+   public void clear() {
+      for (BucketKey key : buckets_.keySet()) {
+         ConcurrentLinkedDeque<Object> bucket = buckets_.get(key);
+         while (bucket.poll() != null) {
+            pooledBytes_.addAndGet(-key.getNumBytes());
+         }
+      }
+   }
+
+   /**
+    * Counters to see how well arrays are being reused, along with the
+    * collection counts and times of the JVM's garbage collectors for
+    * comparison
+    *
+    * @return JSON with "allocations", "allocated-bytes", "reuses",
+    * "discards", "pooled-bytes", "gc-count" and "gc-time-ms"
+    */
+   public JSONObject getStatistics() {
+      long gcCount = 0;
+      long gcTime = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+         gcCount += Math.max(0, gc.getCollectionCount());
+         gcTime += Math.max(0, gc.getCollectionTime());
+      }
+      try {
+         JSONObject json = new JSONObject();
+         json.put("allocations", allocations_.get());
+         json.put("allocated-bytes", allocatedBytes_.get());
+         json.put("reuses", reuses_.get());
+         json.put("discards", discards_.get());
+         json.put("pooled-bytes", pooledBytes_.get());
+         json.put("gc-count", gcCount);
+         json.put("gc-time-ms", gcTime);
+         return json;
+      } catch (JSONException ex) {
+         throw new RuntimeException(ex);
+      }
+   }
+
+   private Object poll(BucketKey key) {
+      ConcurrentLinkedDeque<Object> bucket = buckets_.get(key);
+      Object array = bucket == null ? null : bucket.poll();
+      if (array != null) {
+         reuses_.incrementAndGet();
+         pooledBytes_.addAndGet(-key.getNumBytes());
+      }
+      return array;
+   }
+
+   private static class BucketKey {
+
+      private final Class arrayClass_;
+      private final int length_;
+
+      BucketKey(Class arrayClass, int length) {
+         arrayClass_ = arrayClass;
+         length_ = length;
+      }
+
+      long getNumBytes() {
+         return (long) length_ * ZMQUtil.getElementSize(arrayClass_);
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         return o instanceof BucketKey && ((BucketKey) o).arrayClass_ == arrayClass_
+                 && ((BucketKey) o).length_ == length_;
+      }
+
+      @Override
+      public int hashCode() {
+         return 31 * arrayClass_.hashCode() + length_;
+      }
+   }
+
+}
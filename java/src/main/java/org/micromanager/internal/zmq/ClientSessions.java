@@ -0,0 +1,300 @@
+package org.micromanager.internal.zmq;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+
+/**
+ * Keeps track of which exported objects are held by which client, so that
+ * everything a client holds can be released at once when it disconnects or
+ * stops sending heartbeats, and so the memory held on behalf of each client
+ * can be monitored and limited.
+ *
+ * Clients opt in by sending a "client-id" with their requests. Objects
+ * exported while handling such a request belong to that client's session.
+ * A session with a lease expires if no request arrives within the lease
+ * period, releasing all of its objects
+ */
+class ClientSessions {
+
+   private static final long LEASE_CHECK_INTERVAL_MS = 1000;
+
+   private static final ConcurrentHashMap<String, Session> SESSIONS
+           = new ConcurrentHashMap<String, Session>();
+   //Session of the request being executed on this thread, if any
+   private static final ThreadLocal<Session> CURRENT = new ThreadLocal<Session>();
+   private static final ConcurrentHashMap<Class, List<Field>> ARRAY_FIELDS
+           = new ConcurrentHashMap<Class, List<Field>>();
+   private static ScheduledExecutorService leaseMonitor_;
+
+   /**
+    * Get the session of a client, creating it if needed, and renew its lease
+    *
+    * @param clientID
+    * @return
+    */
+   public static Session getSession(String clientID) {
+      while (true) {
+         Session session = SESSIONS.computeIfAbsent(clientID, Session::new);
+         if (session.renew()) {
+            return session;
+         }
+         //expired just now, and is being released
+         SESSIONS.remove(clientID, session);
+      }
+   }
+
+   /**
+    * @return session of the request being handled on this thread, or null
+    */
+   public static Session getCurrent() {
+      return CURRENT.get();
+   }
+
+   public static void setCurrent(Session session) {
+      if (session == null) {
+         CURRENT.remove();
+      } else {
+         CURRENT.set(session);
+      }
+   }
+
+   /**
+    * Release all objects held by a client and end its session
+    *
+    * @param clientID
+    * @return number of objects released
+    */
+   public static int release(String clientID) {
+      Session session = SESSIONS.remove(clientID);
+      return session == null ? 0 : session.releaseAll();
+   }
+
+   /**
+    * @return live handles and approximate retained bytes of every session
+    * @throws JSONException
+    */
+   public static JSONArray getStats() throws JSONException {
+      JSONArray stats = new JSONArray();
+      for (Session session : SESSIONS.values()) {
+         stats.put(session.getStats());
+      }
+      return stats;
+   }
+
+   private static synchronized void startLeaseMonitor() {
+      if (leaseMonitor_ != null) {
+         return;
+      }
+      leaseMonitor_ = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+         Thread t = new Thread(r, "ZMQ client lease monitor");
+         t.setDaemon(true);
+         return t;
+      });
+      leaseMonitor_.scheduleWithFixedDelay(() -> {
+         long now = System.currentTimeMillis();
+         for (Session session : SESSIONS.values()) {
+            if (session.expire(now)) {
+               SESSIONS.remove(session.clientID_, session);
+               session.releaseAll();
+            }
+         }
+      }, LEASE_CHECK_INTERVAL_MS, LEASE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Rough estimate of the memory an object keeps alive: its own fields plus
+    * any primitive arrays it directly refers to (e.g. image pixels)
+    */
+   static long estimateSize(Object o) {
+      Class clazz = o.getClass();
+      if (clazz.isArray()) {
+         return 16 + (long) Array.getLength(o) * componentSize(clazz.getComponentType());
+      }
+      long size = 16;
+      for (Field f : ARRAY_FIELDS.computeIfAbsent(clazz, ClientSessions::findArrayFields)) {
+         try {
+            Object array = f.get(o);
+            if (array != null) {
+               size += 16 + (long) Array.getLength(array) * componentSize(f.getType().getComponentType());
+            }
+         } catch (IllegalAccessException ex) {
+            //can't see it, leave it out of the estimate
+         }
+      }
+      return size;
+   }
+
+   private static List<Field> findArrayFields(Class clazz) {
+      List<Field> fields = new ArrayList<Field>();
+      for (Class c = clazz; c != null; c = c.getSuperclass()) {
+         for (Field f : c.getDeclaredFields()) {
+            if (!Modifier.isStatic(f.getModifiers()) && f.getType().isArray()
+                    && f.getType().getComponentType().isPrimitive()) {
+               try {
+                  f.setAccessible(true);
+                  fields.add(f);
+               } catch (RuntimeException ex) {
+                  //Not accessible (e.g. JDK internals)
+               }
+            }
+         }
+      }
+      return fields;
+   }
+
+   private static int componentSize(Class c) {
+      if (c == byte.class || c == boolean.class) {
+         return 1;
+      } else if (c == short.class || c == char.class) {
+         return 2;
+      } else if (c == int.class || c == float.class) {
+         return 4;
+      }
+      return 8;
+   }
+
+   /**
+    * Objects exported to one client. Once closed (released or expired) no
+    * more objects can be added, so none are left behind that would never be
+    * released
+    */
+   static class Session {
+
+      private final String clientID_;
+      //handle -> estimated size
+      private final ConcurrentHashMap<Long, Long> handles_ = new ConcurrentHashMap<Long, Long>();
+      private final AtomicLong retainedBytes_ = new AtomicLong();
+      private volatile long lastSeen_;
+      private volatile long leaseMs_ = 0;
+      private volatile long maxRetainedBytes_ = 0;
+      //guarded by this
+      private boolean closed_ = false;
+
+      private Session(String clientID) {
+         clientID_ = clientID;
+         lastSeen_ = System.currentTimeMillis();
+      }
+
+      public String getClientID() {
+         return clientID_;
+      }
+
+      /**
+       * @return false if the session has already been closed
+       */
+      public synchronized boolean renew() {
+         if (closed_) {
+            return false;
+         }
+         lastSeen_ = System.currentTimeMillis();
+         return true;
+      }
+
+      /**
+       * @param leaseMs release all objects if no request arrives for this
+       * long. 0 for no lease
+       */
+      public void setLeaseMs(long leaseMs) {
+         leaseMs_ = leaseMs;
+         if (leaseMs > 0) {
+            startLeaseMonitor();
+         }
+      }
+
+      /**
+       * @param maxRetainedBytes exporting more objects than this (estimated)
+       * fails. 0 for no limit
+       */
+      public void setMaxRetainedBytes(long maxRetainedBytes) {
+         maxRetainedBytes_ = maxRetainedBytes;
+      }
+
+      /**
+       * Check that the object can be exported to this client without going
+       * over its memory limit
+       *
+       * @return estimated size of the object
+       */
+      long reserve(Object o) {
+         long size = estimateSize(o);
+         if (maxRetainedBytes_ > 0 && retainedBytes_.get() + size > maxRetainedBytes_) {
+            throw new RuntimeException("Client " + clientID_ + " holds "
+                    + retainedBytes_.get() + " bytes of java objects, exporting another "
+                    + size + " would exceed its limit of " + maxRetainedBytes_);
+         }
+         return size;
+      }
+
+      /**
+       * @return false if the session is closed, in which case the object
+       * must not be exported
+       */
+      synchronized boolean added(long handle, long size) {
+         if (closed_) {
+            return false;
+         }
+         handles_.put(handle, size);
+         retainedBytes_.addAndGet(size);
+         return true;
+      }
+
+      void removed(long handle) {
+         Long size = handles_.remove(handle);
+         if (size != null) {
+            retainedBytes_.addAndGet(-size);
+         }
+      }
+
+      /**
+       * Close the session if its lease has run out
+       *
+       * @return true if it was closed
+       */
+      private synchronized boolean expire(long now) {
+         if (closed_ || leaseMs_ <= 0 || now - lastSeen_ <= leaseMs_) {
+            return false;
+         }
+         closed_ = true;
+         return true;
+      }
+
+      private int releaseAll() {
+         List<Long> handles;
+         synchronized (this) {
+            closed_ = true;
+            handles = new ArrayList<Long>(handles_.keySet());
+         }
+         //outside the lock, since removing takes the lock of the handle table,
+         //which is held while adding
+         int count = 0;
+         for (Long handle : handles) {
+            if (ZMQUtil.EXTERNAL_OBJECTS.remove(handle) != null) {
+               count++;
+            }
+         }
+         return count;
+      }
+
+      private JSONObject getStats() throws JSONException {
+         JSONObject stats = new JSONObject();
+         stats.put("client-id", clientID_);
+         stats.put("live-handles", handles_.size());
+         stats.put("retained-bytes", retainedBytes_.get());
+         stats.put("lease-ms", leaseMs_);
+         stats.put("idle-ms", System.currentTimeMillis() - lastSeen_);
+         return stats;
+      }
+   }
+
+}
@@ -0,0 +1,185 @@
+package org.micromanager.internal.zmq;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table of objects that have been sent out to clients, indexed by compact
+ * numeric handles.
+ *
+ * A handle holds the index of the slot the object is stored in (low 32 bits)
+ * and a sequence number (high bits) that is different every time a slot is
+ * reused, so a stale handle never finds another object. Lookups are a single
+ * array read and don't lock. Adding and removing objects lock, but only to
+ * manage the list of free slots.
+ *
+ * For clients that only know about the String "hash-code" of an object, the
+ * hash code is the decimal form of the handle
+ */
+class HandleTable {
+
+   private static final int SLOT_BITS = 32;
+   private static final long SLOT_MASK = (1L << SLOT_BITS) - 1;
+   private static final int INITIAL_CAPACITY = 256;
+
+   private final Object lock_ = new Object();
+   private volatile AtomicReferenceArray<Entry> slots_
+           = new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+   //guarded by lock_
+   private int[] freeSlots_ = new int[INITIAL_CAPACITY];
+   private int numFreeSlots_ = 0;
+   private int nextUnusedSlot_ = 0;
+   private long nextSequence_ = 1;
+   private volatile int size_ = 0;
+
+   /**
+    * Store an object
+    *
+    * @param o
+    * @return handle that can be used to get or remove it
+    */
+   public long add(Object o) {
+      return add(o, null);
+   }
+
+   /**
+    * Store an object on behalf of a client
+    *
+    * @param o
+    * @param owner session of the client the object is sent to, or null
+    * @return handle that can be used to get or remove it
+    * @throws RuntimeException if the owner's session has been closed
+    */
+   public long add(Object o, ClientSessions.Session owner) {
+      long size = owner == null ? 0 : owner.reserve(o);
+      long handle;
+      synchronized (lock_) {
+         int slot = numFreeSlots_ > 0 ? freeSlots_[--numFreeSlots_] : nextUnusedSlot_++;
+         AtomicReferenceArray<Entry> slots = slots_;
+         if (slot >= slots.length()) {
+            AtomicReferenceArray<Entry> grown = new AtomicReferenceArray<Entry>(slots.length() * 2);
+            for (int i = 0; i < slots.length(); i++) {
+               grown.set(i, slots.get(i));
+            }
+            slots = grown;
+            slots_ = grown;
+         }
+         handle = (nextSequence_++ << SLOT_BITS) | slot;
+         //recorded by the owner before the object can be found, so that
+         //releasing the owner's objects never misses it
+         if (owner != null && !owner.added(handle, size)) {
+            freeSlot(slot);
+            throw new RuntimeException("Session of client " + owner.getClientID()
+                    + " has expired or been released");
+         }
+         slots.set(slot, new Entry(handle, o, owner));
+         size_++;
+      }
+      return handle;
+   }
+
+   /**
+    * @param handle
+    * @return the object with this handle, or null if there is none
+    */
+   public Object get(long handle) {
+      Entry entry = getEntry(handle);
+      return entry == null ? null : entry.object_;
+   }
+
+   /**
+    * @param hashCode String form of a handle
+    * @return the object with this handle, or null if there is none
+    */
+   public Object get(String hashCode) {
+      long handle = parseHandle(hashCode);
+      return handle < 0 ? null : get(handle);
+   }
+
+   /**
+    * Remove an object so it can be garbage collected
+    *
+    * @param handle
+    * @return the removed object, or null if there was none
+    */
+   public Object remove(long handle) {
+      Entry entry;
+      synchronized (lock_) {
+         entry = getEntry(handle);
+         if (entry == null) {
+            return null;
+         }
+         int slot = (int) (handle & SLOT_MASK);
+         slots_.set(slot, null);
+         freeSlot(slot);
+         size_--;
+         if (entry.owner_ != null) {
+            entry.owner_.removed(handle);
+         }
+      }
+      return entry.object_;
+   }
+
+   /**
+    * Call holding lock_
+    */
+   private void freeSlot(int slot) {
+      if (numFreeSlots_ == freeSlots_.length) {
+         int[] grown = new int[freeSlots_.length * 2];
+         System.arraycopy(freeSlots_, 0, grown, 0, numFreeSlots_);
+         freeSlots_ = grown;
+      }
+      freeSlots_[numFreeSlots_++] = slot;
+   }
+
+   /**
+    * @param hashCode String form of a handle
+    * @return the removed object, or null if there was none
+    */
+   public Object remove(String hashCode) {
+      long handle = parseHandle(hashCode);
+      return handle < 0 ? null : remove(handle);
+   }
+
+   /**
+    * @return number of objects currently stored
+    */
+   public int size() {
+      return size_;
+   }
+
+   public static String toHashCode(long handle) {
+      return Long.toString(handle);
+   }
+
+   private Entry getEntry(long handle) {
+      long slot = handle & SLOT_MASK;
+      AtomicReferenceArray<Entry> slots = slots_;
+      if (handle <= 0 || slot >= slots.length()) {
+         return null;
+      }
+      Entry entry = slots.get((int) slot);
+      return entry != null && entry.handle_ == handle ? entry : null;
+   }
+
+   private static long parseHandle(String hashCode) {
+      try {
+         return Long.parseLong(hashCode);
+      } catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+
+   private static class Entry {
+
+      private final long handle_;
+      private final Object object_;
+      private final ClientSessions.Session owner_;
+
+      Entry(long handle, Object o, ClientSessions.Session owner) {
+         handle_ = handle;
+         object_ = o;
+         owner_ = owner;
+      }
+   }
+
+}
@@ -0,0 +1,180 @@
+package org.micromanager.internal.zmq;
+
+import java.util.Arrays;
+
+/**
+ * Compression in the LZ4 block format, so the output can be decompressed by
+ * any LZ4 implementation (e.g. lz4.block.decompress in python) given the
+ * uncompressed size. Greedy matching with a single hash table, which favors
+ * speed over ratio
+ */
+class LZ4Block {
+
+   private static final int MIN_MATCH = 4;
+   //The format requires the last 5 bytes to be literals, and the last match
+   //to start at least 12 bytes before the end
+   private static final int LAST_LITERALS = 5;
+   private static final int MF_LIMIT = 12;
+   private static final int MAX_OFFSET = 65535;
+   private static final int HASH_BITS = 14;
+   //Skip ahead faster through data that doesn't compress
+   private static final int SKIP_TRIGGER = 6;
+
+   /**
+    * @param length uncompressed size
+    * @return largest possible compressed size
+    */
+   static int maxCompressedLength(int length) {
+      return length + length / 255 + 16;
+   }
+
+   /**
+    * @param src data to compress
+    * @return compressed block
+    */
+   static byte[] compress(byte[] src) {
+      return compress(src, src.length);
+   }
+
+   /**
+    * @param src data to compress
+    * @param n number of bytes of src to compress
+    * @return compressed block
+    */
+   static byte[] compress(byte[] src, int n) {
+      BufferPool pool = BufferPool.getDefault();
+      byte[] dst = pool.takeScratch(maxCompressedLength(n));
+      int op = 0;
+      int anchor = 0;
+      if (n >= MF_LIMIT + 1) {
+         int[] table = (int[]) pool.take(int[].class, 1 << HASH_BITS);
+         Arrays.fill(table, -1);
+         int matchLimit = n - LAST_LITERALS;
+         int ip = 0;
+         int misses = 0;
+         while (ip < n - MF_LIMIT) {
+            int sequence = readInt(src, ip);
+            int h = hash(sequence);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+               ip += 1 + (misses++ >> SKIP_TRIGGER);
+               continue;
+            }
+            misses = 0;
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+               matchLength++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+         }
+         pool.release(table);
+      }
+      //last literals
+      op = writeLiterals(src, anchor, n - anchor, dst, op, 0);
+      byte[] compressed = Arrays.copyOf(dst, op);
+      pool.release(dst);
+      return compressed;
+   }
+
+   /**
+    * @param src compressed block
+    * @param length uncompressed size
+    * @return decompressed data, from the BufferPool
+    */
+   static byte[] decompress(byte[] src, int length) {
+      byte[] dst = (byte[]) BufferPool.getDefault().take(byte[].class, length);
+      int ip = 0;
+      int op = 0;
+      while (ip < src.length) {
+         int token = src[ip++] & 0xff;
+         int literalLength = token >>> 4;
+         if (literalLength == 15) {
+            int b;
+            do {
+               b = src[ip++] & 0xff;
+               literalLength += b;
+            } while (b == 255);
+         }
+         System.arraycopy(src, ip, dst, op, literalLength);
+         ip += literalLength;
+         op += literalLength;
+         if (ip >= src.length) {
+            break; //last sequence has no match
+         }
+         int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+         ip += 2;
+         int matchLength = token & 0xf;
+         if (matchLength == 15) {
+            int b;
+            do {
+               b = src[ip++] & 0xff;
+               matchLength += b;
+            } while (b == 255);
+         }
+         matchLength += MIN_MATCH;
+         int ref = op - offset;
+         if (offset <= 0 || ref < 0 || op + matchLength > length) {
+            throw new RuntimeException("Corrupt LZ4 block");
+         }
+         if (offset >= matchLength) {
+            System.arraycopy(dst, ref, dst, op, matchLength);
+            op += matchLength;
+         } else {
+            //overlapping copy repeats the last offset bytes
+            for (int i = 0; i < matchLength; i++) {
+               dst[op++] = dst[ref++];
+            }
+         }
+      }
+      if (op != length) {
+         throw new RuntimeException("LZ4 block decompressed to " + op + " bytes, expected " + length);
+      }
+      return dst;
+   }
+
+   private static int writeSequence(byte[] src, int literalStart, int literalLength,
+           byte[] dst, int op, int offset, int matchLength) {
+      int extraMatch = matchLength - MIN_MATCH;
+      op = writeLiterals(src, literalStart, literalLength, dst, op, Math.min(extraMatch, 15));
+      dst[op++] = (byte) offset;
+      dst[op++] = (byte) (offset >>> 8);
+      if (extraMatch >= 15) {
+         op = writeLength(dst, op, extraMatch - 15);
+      }
+      return op;
+   }
+
+   /**
+    * Write the token (with the low bits given) and the literals
+    */
+   private static int writeLiterals(byte[] src, int start, int length, byte[] dst, int op,
+           int tokenLowBits) {
+      dst[op++] = (byte) ((Math.min(length, 15) << 4) | tokenLowBits);
+      if (length >= 15) {
+         op = writeLength(dst, op, length - 15);
+      }
+      System.arraycopy(src, start, dst, op, length);
+      return op + length;
+   }
+
+   private static int writeLength(byte[] dst, int op, int length) {
+      while (length >= 255) {
+         dst[op++] = (byte) 255;
+         length -= 255;
+      }
+      dst[op++] = (byte) length;
+      return op;
+   }
+
+   private static int readInt(byte[] b, int i) {
+      return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | (b[i + 3] << 24);
+   }
+
+   private static int hash(int sequence) {
+      return (sequence * -1640531535) >>> (32 - HASH_BITS);
+   }
+
+}
@@ -0,0 +1,192 @@
+package org.micromanager.internal.zmq;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+
+/**
+ * Delta encoding of the metadata of a stream of images, most of which (e.g.
+ * device properties) is the same from one image to the next.
+ *
+ * Every so often the full metadata is sent as a keyframe: "metadata" holds
+ * the tags and "metadata-keyframe" its number. The images in between only
+ * carry the keys whose values differ from the last keyframe in
+ * "metadata-delta", the keys missing since the keyframe in
+ * "metadata-removed", and the number of the keyframe they are relative to in
+ * "metadata-keyframe". Deltas are relative to the keyframe rather than the
+ * previous image, so the receiver only needs to have seen the keyframe
+ */
+public class MetadataDelta {
+
+   /**
+    * Sending side. Not thread safe, use one per stream
+    */
+   public static class Encoder {
+
+      private final int keyframeInterval_;
+      private int sinceKeyframe_ = 0;
+      private long keyframe_ = -1;
+      //values of the last keyframe, with nested JSON as Strings
+      private final HashMap<String, Object> baseline_ = new HashMap<String, Object>();
+
+      /**
+       * @param keyframeInterval send the full metadata every this many images
+       */
+      public Encoder(int keyframeInterval) {
+         keyframeInterval_ = Math.max(1, keyframeInterval);
+      }
+
+      /**
+       * Add the metadata of the next image to a message
+       *
+       * @param tags full metadata
+       * @param message message the encoded metadata is added to
+       * @throws JSONException
+       */
+      public void encode(JSONObject tags, JSONObject message) throws JSONException {
+         if (keyframe_ < 0 || sinceKeyframe_ >= keyframeInterval_) {
+            keyframe_++;
+            sinceKeyframe_ = 1;
+            baseline_.clear();
+            Iterator<String> keys = tags.keys();
+            while (keys.hasNext()) {
+               String key = keys.next();
+               baseline_.put(key, comparable(tags.get(key)));
+            }
+            message.put("metadata", tags);
+            message.put("metadata-keyframe", keyframe_);
+            return;
+         }
+         sinceKeyframe_++;
+         JSONObject delta = new JSONObject();
+         int numInBaseline = 0;
+         Iterator<String> keys = tags.keys();
+         while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = tags.get(key);
+            Object base = baseline_.get(key);
+            if (base != null) {
+               numInBaseline++;
+            }
+            if (base == null || !base.equals(comparable(value))) {
+               delta.put(key, value);
+            }
+         }
+         message.put("metadata-delta", delta);
+         if (numInBaseline < baseline_.size()) {
+            JSONArray removed = new JSONArray();
+            for (String key : baseline_.keySet()) {
+               if (!tags.has(key)) {
+                  removed.put(key);
+               }
+            }
+            message.put("metadata-removed", removed);
+         }
+         message.put("metadata-keyframe", keyframe_);
+      }
+
+      private static Object comparable(Object value) {
+         return value instanceof JSONObject || value instanceof JSONArray
+                 ? value.toString() : value;
+      }
+   }
+
+   /**
+    * Receiving side. Not thread safe, use one per stream
+    */
+   public static class Decoder {
+
+      private long keyframe_ = -1;
+      private JSONObject baseline_;
+
+      /**
+       * @param message message that may hold delta encoded metadata
+       * @return true if the metadata of the message is delta encoded
+       */
+      public static boolean isEncoded(JSONObject message) {
+         return message.has("metadata-keyframe");
+      }
+
+      /**
+       * Reconstruct the full metadata of a message
+       *
+       * @param message
+       * @return full metadata, a new object for every message
+       * @throws JSONException
+       */
+      public JSONObject decode(JSONObject message) throws JSONException {
+         long keyframe = message.getLong("metadata-keyframe");
+         if (message.has("metadata")) {
+            keyframe_ = keyframe;
+            baseline_ = message.getJSONObject("metadata");
+            return (JSONObject) copy(baseline_);
+         }
+         if (keyframe != keyframe_) {
+            throw new RuntimeException("Metadata delta refers to keyframe " + keyframe
+                    + " but the last keyframe received was " + keyframe_);
+         }
+         JSONObject tags = (JSONObject) copy(baseline_);
+         JSONObject delta = message.getJSONObject("metadata-delta");
+         Iterator<String> keys = delta.keys();
+         while (keys.hasNext()) {
+            String key = keys.next();
+            tags.put(key, delta.get(key));
+         }
+         JSONArray removed = message.optJSONArray("metadata-removed");
+         if (removed != null) {
+            for (int i = 0; i < removed.length(); i++) {
+               tags.remove(removed.getString(i));
+            }
+         }
+         return tags;
+      }
+
+      /**
+       * Deep copy, so that the tags of different images share no nested
+       * values. Parsing the String form instead would turn e.g. 10.0 into 10
+       */
+      private static Object copy(Object value) throws JSONException {
+         if (value instanceof JSONObject) {
+            JSONObject json = (JSONObject) value;
+            JSONObject copy = new JSONObject();
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+               String key = keys.next();
+               copy.put(key, copy(json.get(key)));
+            }
+            return copy;
+         } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            JSONArray copy = new JSONArray();
+            for (int i = 0; i < array.length(); i++) {
+               copy.put(copy(array.get(i)));
+            }
+            return copy;
+         }
+         return value;
+      }
+   }
+
+   /**
+    * One decoder per sender, for streams with several senders (e.g. workers)
+    * that each delta encode their own messages
+    */
+   public static class Decoders {
+
+      private final Map<String, Decoder> decoders_ = new HashMap<String, Decoder>();
+
+      /**
+       * @param sender identifies the encoder the message came from
+       * @param message
+       * @return full metadata
+       * @throws JSONException
+       */
+      public synchronized JSONObject decode(String sender, JSONObject message) throws JSONException {
+         return decoders_.computeIfAbsent(sender, (String s) -> new Decoder()).decode(message);
+      }
+   }
+
+}
@@ -0,0 +1,132 @@
+package org.micromanager.internal.zmq;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Calls a resolved Method or Constructor through a MethodHandle that has been
+ * adapted once to the shape (Object receiver, Object[] args) -> Object.
+ *
+ * The adaptation unboxes primitive arguments and boxes the return value
+ * directly in the handle, so each call is a single invokeExact with no
+ * reflective access checks or argument copying. Falls back to reflection if
+ * the member can't be looked up as a handle (e.g. a public method of a non
+ * public class)
+ */
+class MethodInvoker {
+
+   private static final MethodType INVOKER_TYPE
+           = MethodType.methodType(Object.class, Object.class, Object[].class);
+
+   private final Executable executable_;
+   private final MethodHandle handle_;
+   //parameter types, and the same with primitives boxed, to check arguments
+   //like reflection does
+   private final Class[] paramTypes_;
+   private final Class[] argClasses_;
+   private final boolean needsReceiver_;
+
+   MethodInvoker(Executable executable) {
+      executable_ = executable;
+      handle_ = createHandle(executable);
+      paramTypes_ = executable.getParameterTypes();
+      argClasses_ = MethodType.methodType(void.class, paramTypes_).wrap().parameterArray();
+      needsReceiver_ = executable instanceof Method
+              && !Modifier.isStatic(executable.getModifiers());
+   }
+
+   public Executable getExecutable() {
+      return executable_;
+   }
+
+   /**
+    * Call the method on the given object (ignored for static methods and
+    * constructors)
+    *
+    * @param receiver object to call the method on
+    * @param args arguments, with primitives already in their boxed types
+    * @return return value (null for void methods) or newly constructed object
+    * @throws InvocationTargetException if the method itself threw anything,
+    * including Errors, as with reflection
+    * @throws IllegalArgumentException if the receiver or arguments don't fit
+    * the method
+    * @throws IllegalAccessException
+    * @throws InstantiationException
+    */
+   public Object invoke(Object receiver, Object[] args) throws InvocationTargetException,
+           IllegalAccessException, InstantiationException {
+      if (handle_ == null) {
+         if (executable_ instanceof Method) {
+            return ((Method) executable_).invoke(receiver, args);
+         }
+         return ((Constructor) executable_).newInstance(args);
+      }
+      checkArguments(receiver, args);
+      try {
+         return (Object) handle_.invokeExact(receiver, args);
+      } catch (Throwable t) {
+         //Arguments were checked, so anything thrown comes from the method
+         throw new InvocationTargetException(t);
+      }
+   }
+
+   /**
+    * Fail the way reflection does for a call the handle can't make, so it
+    * is reported as a bad call rather than an exception of the method
+    */
+   private void checkArguments(Object receiver, Object[] args) {
+      if (needsReceiver_) {
+         if (receiver == null) {
+            throw new NullPointerException("No object to call "
+                    + executable_.getName() + " on");
+         }
+         if (!executable_.getDeclaringClass().isInstance(receiver)) {
+            throw new IllegalArgumentException("Object is not an instance of "
+                    + executable_.getDeclaringClass().getName());
+         }
+      }
+      int numArgs = args == null ? 0 : args.length;
+      if (numArgs != argClasses_.length) {
+         throw new IllegalArgumentException("Wrong number of arguments: expected "
+                 + argClasses_.length + ", got " + numArgs);
+      }
+      for (int i = 0; i < numArgs; i++) {
+         if (args[i] == null ? paramTypes_[i].isPrimitive()
+                 : !argClasses_[i].isInstance(args[i])) {
+            throw new IllegalArgumentException("Argument type mismatch for argument " + i
+                    + " of " + executable_.getName());
+         }
+      }
+   }
+
+   private static MethodHandle createHandle(Executable executable) {
+      MethodHandle handle;
+      try {
+         if (executable instanceof Method) {
+            handle = MethodHandles.publicLookup().unreflect((Method) executable);
+            if (Modifier.isStatic(executable.getModifiers())) {
+               //no receiver
+               handle = MethodHandles.dropArguments(handle, 0, Object.class);
+            }
+         } else {
+            handle = MethodHandles.publicLookup().unreflectConstructor((Constructor) executable);
+            handle = MethodHandles.dropArguments(handle, 0, Object.class);
+         }
+      } catch (IllegalAccessException ex) {
+         return null;
+      }
+      int numArgs = executable.getParameterCount();
+      //(receiver, p1...pn) -> r  ==>  (Object, Object...) -> Object, with
+      //primitive arguments unboxed and void returning null
+      handle = handle.asType(MethodType.genericMethodType(numArgs + 1));
+      handle = handle.asSpreader(Object[].class, numArgs);
+      return handle.asType(INVOKER_TYPE);
+   }
+
+}
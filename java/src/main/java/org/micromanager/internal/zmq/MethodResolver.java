@@ -0,0 +1,258 @@
+package org.micromanager.internal.zmq;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the Method or Constructor that a remote call refers to, and remembers
+ * an invoker for it so that repeated calls skip the search.
+ *
+ * Candidates are looked up in a per class index by name and number of
+ * arguments. The argument type names sent by the client (the same canonical
+ * names that are sent out in the API description) are matched first. If none
+ * match exactly, the most specific candidate that accepts the runtime types of
+ * the arguments is used
+ */
+class MethodResolver {
+
+   private static final Class[] NO_ARG_CLASSES = new Class[0];
+
+   //name + arity -> public methods of the class
+   private final ConcurrentHashMap<Class, Map<String, List<Method>>> methodIndex_
+           = new ConcurrentHashMap<Class, Map<String, List<Method>>>();
+   //arity -> public constructors of the class
+   private final ConcurrentHashMap<Class, Map<Integer, List<Constructor>>> constructorIndex_
+           = new ConcurrentHashMap<Class, Map<Integer, List<Constructor>>>();
+   private final ConcurrentHashMap<DispatchKey, MethodInvoker> resolved_
+           = new ConcurrentHashMap<DispatchKey, MethodInvoker>();
+   private final ConcurrentHashMap<Executable, MethodInvoker> invokers_
+           = new ConcurrentHashMap<Executable, MethodInvoker>();
+
+   /**
+    * @param clazz class of the object the method is called on
+    * @param name method name
+    * @param argTypes type names of the arguments, as sent by the client
+    * @param argVals deserialized arguments
+    * @return invoker for the matching method
+    * @throws NoSuchMethodException if no method of the class can be called
+    * with these arguments
+    */
+   public MethodInvoker resolveMethod(Class clazz, String name, String[] argTypes, Object[] argVals)
+           throws NoSuchMethodException {
+      DispatchKey key = new DispatchKey(clazz, name, argTypes, argVals);
+      MethodInvoker invoker = resolved_.get(key);
+      if (invoker == null) {
+         List<Method> candidates = methodIndex_.computeIfAbsent(clazz, MethodResolver::indexMethods)
+                 .get(name + "/" + argVals.length);
+         Executable method = findMatch(candidates, argTypes, argVals);
+         if (method == null) {
+            throw new NoSuchMethodException("No method " + clazz.getName() + "." + name
+                    + " matching argument types " + Arrays.toString(argTypes));
+         }
+         invoker = getInvoker(method);
+         resolved_.put(key, invoker);
+      }
+      return invoker;
+   }
+
+   /**
+    * @param clazz class to construct
+    * @param argTypes type names of the arguments, as sent by the client
+    * @param argVals deserialized arguments
+    * @return invoker for the matching constructor
+    * @throws NoSuchMethodException if no constructor of the class can be
+    * called with these arguments
+    */
+   public MethodInvoker resolveConstructor(Class clazz, String[] argTypes, Object[] argVals)
+           throws NoSuchMethodException {
+      DispatchKey key = new DispatchKey(clazz, null, argTypes, argVals);
+      MethodInvoker invoker = resolved_.get(key);
+      if (invoker == null) {
+         List<Constructor> candidates = constructorIndex_.computeIfAbsent(clazz,
+                 MethodResolver::indexConstructors).get(argVals.length);
+         Executable constructor = findMatch(candidates, argTypes, argVals);
+         if (constructor == null) {
+            throw new NoSuchMethodException("No constructor of " + clazz.getName()
+                    + " matching argument types " + Arrays.toString(argTypes));
+         }
+         invoker = getInvoker(constructor);
+         resolved_.put(key, invoker);
+      }
+      return invoker;
+   }
+
+   /**
+    * One invoker per method, shared by all the keys that resolve to it
+    */
+   private MethodInvoker getInvoker(Executable executable) {
+      return invokers_.computeIfAbsent(executable, MethodInvoker::new);
+   }
+
+   private static Map<String, List<Method>> indexMethods(Class clazz) {
+      Map<String, List<Method>> index = new HashMap<String, List<Method>>();
+      for (Method m : clazz.getMethods()) {
+         String key = m.getName() + "/" + m.getParameterCount();
+         if (!index.containsKey(key)) {
+            index.put(key, new ArrayList<Method>());
+         }
+         //Put bridge methods last so that the real implementation is preferred
+         if (m.isBridge()) {
+            index.get(key).add(m);
+         } else {
+            index.get(key).add(0, m);
+         }
+      }
+      return index;
+   }
+
+   private static Map<Integer, List<Constructor>> indexConstructors(Class clazz) {
+      Map<Integer, List<Constructor>> index = new HashMap<Integer, List<Constructor>>();
+      for (Constructor c : clazz.getConstructors()) {
+         if (!index.containsKey(c.getParameterCount())) {
+            index.put(c.getParameterCount(), new ArrayList<Constructor>());
+         }
+         index.get(c.getParameterCount()).add(c);
+      }
+      return index;
+   }
+
+   private static Executable findMatch(List<? extends Executable> candidates,
+           String[] argTypes, Object[] argVals) {
+      if (candidates == null) {
+         return null;
+      }
+      //The client picks the overload, so its type names should match exactly
+      for (Executable e : candidates) {
+         if (typeNamesMatch(e.getParameterTypes(), argTypes)) {
+            return e;
+         }
+      }
+      //Otherwise take the most specific one that accepts the arguments
+      Executable best = null;
+      for (Executable e : candidates) {
+         if (acceptsArguments(e.getParameterTypes(), argVals)
+                 && (best == null || isMoreSpecific(e.getParameterTypes(), best.getParameterTypes()))) {
+            best = e;
+         }
+      }
+      return best;
+   }
+
+   private static boolean typeNamesMatch(Class[] paramTypes, String[] argTypes) {
+      if (argTypes == null || argTypes.length != paramTypes.length) {
+         return false;
+      }
+      for (int i = 0; i < paramTypes.length; i++) {
+         if (!argTypes[i].equals(paramTypes[i].getCanonicalName())
+                 && !argTypes[i].equals(paramTypes[i].getName())) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static boolean acceptsArguments(Class[] paramTypes, Object[] argVals) {
+      for (int i = 0; i < paramTypes.length; i++) {
+         if (argVals[i] == null) {
+            if (paramTypes[i].isPrimitive()) {
+               return false;
+            }
+         } else if (paramTypes[i].isPrimitive()) {
+            if (!isBoxedType(paramTypes[i], argVals[i].getClass())) {
+               return false;
+            }
+         } else if (!paramTypes[i].isInstance(argVals[i])) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static boolean isBoxedType(Class primitive, Class boxed) {
+      return boxedType(primitive) == boxed;
+   }
+
+   private static boolean isMoreSpecific(Class[] a, Class[] b) {
+      for (int i = 0; i < a.length; i++) {
+         //a primitive only accepts its boxed type, so it is at least as
+         //specific as anything that accepts that
+         if (!b[i].isAssignableFrom(a[i]) && !(a[i].isPrimitive()
+                 && !b[i].isPrimitive() && b[i].isAssignableFrom(boxedType(a[i])))) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static Class boxedType(Class primitive) {
+      if (primitive == boolean.class) {
+         return Boolean.class;
+      } else if (primitive == byte.class) {
+         return Byte.class;
+      } else if (primitive == short.class) {
+         return Short.class;
+      } else if (primitive == char.class) {
+         return Character.class;
+      } else if (primitive == int.class) {
+         return Integer.class;
+      } else if (primitive == long.class) {
+         return Long.class;
+      } else if (primitive == float.class) {
+         return Float.class;
+      }
+      return Double.class;
+   }
+
+   /**
+    * Identifies a call by the receiver class, method name, the type names
+    * given by the client and the runtime classes of the arguments
+    */
+   private static class DispatchKey {
+
+      private final Class clazz_;
+      private final String name_;
+      private final String[] argTypes_;
+      private final Class[] argClasses_;
+      private final int hash_;
+
+      DispatchKey(Class clazz, String name, String[] argTypes, Object[] argVals) {
+         clazz_ = clazz;
+         name_ = name;
+         argTypes_ = argTypes;
+         argClasses_ = argVals.length == 0 ? NO_ARG_CLASSES : new Class[argVals.length];
+         for (int i = 0; i < argVals.length; i++) {
+            argClasses_[i] = argVals[i] == null ? null : argVals[i].getClass();
+         }
+         int h = clazz.hashCode();
+         h = 31 * h + (name == null ? 0 : name.hashCode());
+         h = 31 * h + Arrays.hashCode(argTypes);
+         h = 31 * h + Arrays.hashCode(argClasses_);
+         hash_ = h;
+      }
+
+      @Override
+      public int hashCode() {
+         return hash_;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof DispatchKey)) {
+            return false;
+         }
+         DispatchKey k = (DispatchKey) o;
+         return hash_ == k.hash_ && clazz_ == k.clazz_
+                 && (name_ == null ? k.name_ == null : name_.equals(k.name_))
+                 && Arrays.equals(argTypes_, k.argTypes_)
+                 && Arrays.equals(argClasses_, k.argClasses_);
+      }
+   }
+
+}
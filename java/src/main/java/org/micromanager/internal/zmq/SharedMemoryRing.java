@@ -0,0 +1,361 @@
+package org.micromanager.internal.zmq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+
+/**
+ * Ring of fixed size slots in a memory mapped file (in /dev/shm where it
+ * exists), used to pass large primitive arrays to a process on the same host
+ * without copying them through a socket. Only a small header naming the slot
+ * travels over ZMQ.
+ *
+ * File layout (header fields little endian):
+ * <pre>
+ * 0   int  magic "PMRB"
+ * 4   int  version
+ * 8   int  number of slots
+ * 12  int  unused
+ * 16  long slot size in bytes
+ * 24  long offset of slot 0 (page aligned)
+ * 32  int[number of slots] slot states: 0 free, 1 full
+ * </pre>
+ * The producer waits for a slot to be free, copies an array into it, marks it
+ * full and then sends the header. The consumer reads the array and
+ * acknowledges it by writing 0 to the slot's state, after which the slot can
+ * be reused. Slots are taken in ring order, skipping any that are still full,
+ * so a consumer that processes headers in the order received always frees the
+ * slot the producer waits for next, and one that never frees a slot (e.g. a
+ * client that dropped a reply) only takes that slot out of use
+ */
+public class SharedMemoryRing {
+
+   private static final int MAGIC = 0x424d5250; //"PMRB" little endian
+   private static final int VERSION = 1;
+   private static final int STATE_OFFSET = 32;
+   private static final int FREE = 0;
+   private static final int FULL = 1;
+   private static final long PAGE_SIZE = 4096;
+   private static final long WAIT_NS = TimeUnit.MICROSECONDS.toNanos(50);
+   private static final ByteOrder BYTE_ORDER = ByteOrder.nativeOrder();
+   private static final AtomicInteger COUNT = new AtomicInteger();
+
+   private final File file_;
+   private final RandomAccessFile raf_;
+   private final MappedByteBuffer header_;
+   private final MappedByteBuffer[] slots_;
+   private final int numSlots_;
+   private final long slotSize_;
+   private final long dataOffset_;
+   //guarded by this
+   private int nextSlot_ = 0;
+   //Held to read or write the mapped slots, and exclusively to unmap them
+   private final ReentrantReadWriteLock mappingLock_ = new ReentrantReadWriteLock();
+   private volatile boolean closed_ = false;
+
+   /**
+    * Create and map a new ring buffer file
+    *
+    * @param numSlots number of arrays that can be in flight at once
+    * @param slotSize largest array that fits, in bytes
+    * @throws IOException
+    */
+   public SharedMemoryRing(int numSlots, long slotSize) throws IOException {
+      if (numSlots <= 0 || slotSize <= 0 || slotSize > Integer.MAX_VALUE) {
+         throw new IllegalArgumentException("Invalid shared memory ring size: "
+                 + numSlots + " slots of " + slotSize + " bytes");
+      }
+      numSlots_ = numSlots;
+      slotSize_ = slotSize;
+      dataOffset_ = (STATE_OFFSET + 4L * numSlots + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+
+      File dir = new File("/dev/shm");
+      if (!dir.isDirectory() || !dir.canWrite()) {
+         dir = new File(System.getProperty("java.io.tmpdir"));
+      }
+      file_ = new File(dir, "pycromanager-ring-" + getProcessID() + "-"
+              + COUNT.incrementAndGet());
+      file_.deleteOnExit();
+      raf_ = new RandomAccessFile(file_, "rw");
+      raf_.setLength(dataOffset_ + numSlots * slotSize);
+      FileChannel channel = raf_.getChannel();
+      header_ = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataOffset_);
+      header_.order(ByteOrder.LITTLE_ENDIAN);
+      slots_ = new MappedByteBuffer[numSlots];
+      for (int i = 0; i < numSlots; i++) {
+         slots_[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                 dataOffset_ + i * slotSize, slotSize);
+      }
+      header_.putInt(0, MAGIC);
+      header_.putInt(4, VERSION);
+      header_.putInt(8, numSlots);
+      header_.putLong(16, slotSize);
+      header_.putLong(24, dataOffset_);
+      for (int i = 0; i < numSlots; i++) {
+         header_.putInt(stateOffset(i), FREE);
+      }
+   }
+
+   /**
+    * @return what a consumer needs to map the ring
+    */
+   public JSONObject getDescriptor() {
+      try {
+         JSONObject json = new JSONObject();
+         json.put("path", file_.getAbsolutePath());
+         json.put("num-slots", numSlots_);
+         json.put("slot-size", slotSize_);
+         json.put("data-offset", dataOffset_);
+         json.put("state-offset", STATE_OFFSET);
+         return json;
+      } catch (JSONException ex) {
+         throw new RuntimeException(ex);
+      }
+   }
+
+   public long getSlotSize() {
+      return slotSize_;
+   }
+
+   /**
+    * Copy an array into the next slot of the ring
+    *
+    * @param array primitive array
+    * @param timeoutMs how long to wait for the consumer to free the slot. 0
+    * to not wait, negative to wait indefinitely
+    * @return header describing the array and the slot it's in (the same as
+    * ZMQUtil.toJSON gives for binary frames, with "shm-slot" in place of
+    * "binary-frame"), or null if the array doesn't fit, no slot became free
+    * in time or the ring is closed, in which case the caller should send it
+    * some other way
+    * @throws InterruptedException
+    */
+   public synchronized JSONObject put(Object array, long timeoutMs) throws InterruptedException {
+      Class arrayClass = array.getClass();
+      long numBytes = (long) Array.getLength(array) * ZMQUtil.getElementSize(arrayClass);
+      if (numBytes > slotSize_) {
+         return null;
+      }
+      mappingLock_.readLock().lock();
+      try {
+         int slot = waitForFreeSlot(timeoutMs);
+         return slot < 0 ? null : write(array, numBytes, slot);
+      } finally {
+         mappingLock_.readLock().unlock();
+      }
+   }
+
+   /**
+    * @return the first free slot from nextSlot_ on, or -1 if none became free
+    * in time or the ring was closed
+    */
+   private int waitForFreeSlot(long timeoutMs) throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+      while (!closed_) {
+         for (int i = 0; i < numSlots_; i++) {
+            int slot = (nextSlot_ + i) % numSlots_;
+            if (header_.getInt(stateOffset(slot)) == FREE) {
+               return slot;
+            }
+         }
+         if (timeoutMs == 0 || (timeoutMs > 0 && System.nanoTime() > deadline)) {
+            return -1;
+         }
+         LockSupport.parkNanos(WAIT_NS);
+         if (Thread.interrupted()) {
+            throw new InterruptedException();
+         }
+      }
+      return -1;
+   }
+
+   private JSONObject write(Object array, long numBytes, int slot) {
+      Class arrayClass = array.getClass();
+      ByteBuffer buffer = slots_[slot].duplicate().order(BYTE_ORDER);
+      if (array instanceof byte[]) {
+         buffer.put((byte[]) array);
+      } else if (array instanceof short[]) {
+         buffer.asShortBuffer().put((short[]) array);
+      } else if (array instanceof int[]) {
+         buffer.asIntBuffer().put((int[]) array);
+      } else if (array instanceof float[]) {
+         buffer.asFloatBuffer().put((float[]) array);
+      } else if (array instanceof double[]) {
+         buffer.asDoubleBuffer().put((double[]) array);
+      } else {
+         throw new RuntimeException("unknown array type");
+      }
+      //The header is sent over ZMQ after this, which orders it after the
+      //pixel writes as seen by the consumer
+      header_.putInt(stateOffset(slot), FULL);
+      nextSlot_ = (slot + 1) % numSlots_;
+
+      try {
+         JSONObject json = new JSONObject();
+         json.put("type", ZMQUtil.ARRAY_CLASS_NAME_MAP.get(arrayClass));
+         json.put("dtype", ZMQUtil.getDType(arrayClass, BYTE_ORDER));
+         json.put("shape", new JSONArray().put(Array.getLength(array)));
+         json.put("shm-slot", slot);
+         json.put("shm-offset", dataOffset_ + slot * slotSize_);
+         json.put("nbytes", numBytes);
+         return json;
+      } catch (JSONException ex) {
+         throw new RuntimeException(ex);
+      }
+   }
+
+   /**
+    * Copy an array out of the slot a header refers to and free the slot
+    *
+    * @param json header produced by put (here or by another process)
+    * @return primitive array, from the BufferPool
+    * @throws JSONException
+    */
+   public Object get(JSONObject json) throws JSONException {
+      Class arrayClass = ZMQUtil.ARRAY_NAME_CLASS_MAP.get(json.getString("type"));
+      if (arrayClass == null) {
+         throw new RuntimeException("unknown array type: " + json.getString("type"));
+      }
+      int slot = json.getInt("shm-slot");
+      int length = json.getJSONArray("shape").getInt(0);
+      if (slot < 0 || slot >= numSlots_ || length < 0
+              || (long) length * ZMQUtil.getElementSize(arrayClass) > slotSize_) {
+         throw new RuntimeException("Invalid shared memory slot " + slot + " of " + numSlots_
+                 + " for " + length + " elements");
+      }
+      ByteOrder order = json.optString("dtype", "<").startsWith("<")
+              ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+      mappingLock_.readLock().lock();
+      try {
+         checkOpen();
+         ByteBuffer buffer = slots_[slot].duplicate().order(order);
+         Object array = BufferPool.getDefault().take(arrayClass, length);
+         if (array instanceof byte[]) {
+            buffer.get((byte[]) array);
+         } else if (array instanceof short[]) {
+            buffer.asShortBuffer().get((short[]) array);
+         } else if (array instanceof int[]) {
+            buffer.asIntBuffer().get((int[]) array);
+         } else if (array instanceof float[]) {
+            buffer.asFloatBuffer().get((float[]) array);
+         } else {
+            buffer.asDoubleBuffer().get((double[]) array);
+         }
+         header_.putInt(stateOffset(slot), FREE);
+         return array;
+      } finally {
+         mappingLock_.readLock().unlock();
+      }
+   }
+
+   /**
+    * Mark a slot as consumed so it can be reused
+    *
+    * @param slot
+    */
+   public void release(int slot) {
+      if (slot < 0 || slot >= numSlots_) {
+         throw new RuntimeException("Invalid shared memory slot " + slot + " of " + numSlots_);
+      }
+      mappingLock_.readLock().lock();
+      try {
+         checkOpen();
+         header_.putInt(stateOffset(slot), FREE);
+      } finally {
+         mappingLock_.readLock().unlock();
+      }
+   }
+
+   /**
+    * Unmap the ring and delete the file. Waits for copies in progress, and a
+    * put waiting for a free slot gives up
+    */
+   public void close() {
+      closed_ = true;
+      mappingLock_.writeLock().lock();
+      try {
+         if (!raf_.getChannel().isOpen()) {
+            return; //already closed
+         }
+         for (MappedByteBuffer slot : slots_) {
+            unmap(slot);
+         }
+         unmap(header_);
+      } finally {
+         mappingLock_.writeLock().unlock();
+      }
+      try {
+         raf_.close();
+      } catch (IOException ex) {
+         //Nothing to do
+      }
+      file_.delete();
+   }
+
+   private void checkOpen() {
+      if (closed_) {
+         throw new RuntimeException("Shared memory ring is closed");
+      }
+   }
+
+   /**
+    * Release a mapping now rather than whenever it's garbage collected, so
+    * the memory (in /dev/shm, counted against RAM) is freed with the file.
+    * There is no public API for this, so it goes through the JDK internals:
+    * Unsafe.invokeCleaner on Java 9+, the buffer's Cleaner on Java 8. If
+    * neither is accessible, the mapping is left to the garbage collector
+    */
+   private static void unmap(MappedByteBuffer buffer) {
+      try {
+         Class unsafeClass = Class.forName("sun.misc.Unsafe");
+         Method invokeCleaner;
+         try {
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+         } catch (NoSuchMethodException ex) {
+            //Java 8
+            Method cleaner = buffer.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object c = cleaner.invoke(buffer);
+            if (c != null) {
+               c.getClass().getMethod("clean").invoke(c);
+            }
+            return;
+         }
+         Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+         theUnsafe.setAccessible(true);
+         invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      } catch (Exception | LinkageError ex) {
+         //Unmapped once garbage collected instead
+      }
+   }
+
+   private static int stateOffset(int slot) {
+      return STATE_OFFSET + 4 * slot;
+   }
+
+   /**
+    * Something that differs between JVMs on the same host, for file names
+    */
+   private static String getProcessID() {
+      //"pid@hostname" on common JVMs (ProcessHandle is Java 9+)
+      String name = ManagementFactory.getRuntimeMXBean().getName();
+      return name.contains("@") ? name.substring(0, name.indexOf('@'))
+              : Integer.toHexString(name.hashCode());
+   }
+
+}
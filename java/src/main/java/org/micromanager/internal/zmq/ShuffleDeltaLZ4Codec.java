@@ -0,0 +1,87 @@
+package org.micromanager.internal.zmq;
+
+/**
+ * Lossless compression for images: the bytes of each element are shuffled so
+ * that all the first bytes come first, then all the second bytes and so on,
+ * each byte is replaced by its difference to the previous one, and the
+ * result is LZ4 block compressed. Shuffling puts the slowly varying high
+ * bytes of neighboring pixels next to each other, where the delta turns them
+ * into runs of zeros
+ */
+public class ShuffleDeltaLZ4Codec implements ArrayCodec {
+
+   public static final String NAME = "shuffle-delta-lz4";
+
+   @Override
+   public String getName() {
+      return NAME;
+   }
+
+   @Override
+   public byte[] encode(byte[] raw, int elementSize) {
+      //the shuffled bytes are only needed until they're compressed
+      byte[] shuffled = shuffle(raw, elementSize);
+      byte previous = 0;
+      for (int i = 0; i < raw.length; i++) {
+         byte b = shuffled[i];
+         shuffled[i] = (byte) (b - previous);
+         previous = b;
+      }
+      byte[] encoded = LZ4Block.compress(shuffled, raw.length);
+      BufferPool.getDefault().release(shuffled);
+      return encoded;
+   }
+
+   /**
+    * @return the original bytes, from the BufferPool
+    */
+   @Override
+   public byte[] decode(byte[] encoded, int elementSize, int rawLength) {
+      byte[] shuffled = LZ4Block.decompress(encoded, rawLength);
+      for (int i = 1; i < shuffled.length; i++) {
+         shuffled[i] += shuffled[i - 1];
+      }
+      return unshuffle(shuffled, elementSize);
+   }
+
+   /**
+    * @return a scratch array at least as long as raw, from the BufferPool
+    */
+   private static byte[] shuffle(byte[] raw, int elementSize) {
+      byte[] shuffled = BufferPool.getDefault().takeScratch(raw.length);
+      if (elementSize <= 1) {
+         System.arraycopy(raw, 0, shuffled, 0, raw.length);
+         return shuffled;
+      }
+      int numElements = raw.length / elementSize;
+      for (int b = 0; b < elementSize; b++) {
+         int out = b * numElements;
+         for (int i = b; i < numElements * elementSize; i += elementSize) {
+            shuffled[out++] = raw[i];
+         }
+      }
+      //bytes that don't make up a whole element stay at the end
+      int tail = numElements * elementSize;
+      System.arraycopy(raw, tail, shuffled, tail, raw.length - tail);
+      return shuffled;
+   }
+
+   private static byte[] unshuffle(byte[] shuffled, int elementSize) {
+      if (elementSize <= 1) {
+         return shuffled;
+      }
+      byte[] raw = (byte[]) BufferPool.getDefault().take(byte[].class, shuffled.length);
+      int numElements = shuffled.length / elementSize;
+      for (int b = 0; b < elementSize; b++) {
+         int in = b * numElements;
+         for (int i = b; i < numElements * elementSize; i += elementSize) {
+            raw[i] = shuffled[in++];
+         }
+      }
+      int tail = numElements * elementSize;
+      System.arraycopy(shuffled, tail, raw, tail, shuffled.length - tail);
+      BufferPool.getDefault().release(shuffled);
+      return raw;
+   }
+
+}
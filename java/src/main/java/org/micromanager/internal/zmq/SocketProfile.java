@@ -0,0 +1,167 @@
+package org.micromanager.internal.zmq;
+
+import java.util.EnumMap;
+import org.zeromq.ZMQ;
+
+/**
+ * Transport and socket options for a kind of socket. Each socket created by
+ * a ZMQSocketWrapper takes a copy of the profile of its role when it is
+ * created: CONTROL for the servers that handle remote calls, STREAM for the
+ * push and pull sockets that carry images and events.
+ *
+ * Options left at -1 keep the ZMQ defaults, and the default transport is TCP
+ * on the loopback interface, so nothing changes unless a profile is set.
+ *
+ * INPROC sockets can only be reached from inside this JVM, through the
+ * context of ZMQSocketWrapper. There is no IPC transport: JeroMQ only
+ * emulates ipc:// over TCP in a way libzmq clients such as pyzmq can't
+ * connect to
+ */
+public class SocketProfile {
+
+   public enum Transport {
+      TCP, INPROC
+   }
+
+   public enum Role {
+      /** Request/reply sockets for remote method calls */
+      CONTROL,
+      /** Push/pull sockets for bulk data (images, events) */
+      STREAM
+   }
+
+   private static final EnumMap<Role, SocketProfile> PROFILES
+           = new EnumMap<Role, SocketProfile>(Role.class);
+
+   static {
+      for (Role role : Role.values()) {
+         PROFILES.put(role, new SocketProfile());
+      }
+   }
+
+   private Transport transport_ = Transport.TCP;
+   private int sendHWM_ = -1;
+   private int receiveHWM_ = -1;
+   private int sendBufferSize_ = -1;
+   private int receiveBufferSize_ = -1;
+   private int linger_ = -1;
+
+   /**
+    * @param role
+    * @return copy of the profile used for new sockets of this role
+    */
+   public static synchronized SocketProfile getProfile(Role role) {
+      return PROFILES.get(role).copy();
+   }
+
+   /**
+    * Set the profile used for sockets of a role created from now on
+    *
+    * @param role
+    * @param profile
+    */
+   public static synchronized void setProfile(Role role, SocketProfile profile) {
+      PROFILES.put(role, profile.copy());
+   }
+
+   public SocketProfile copy() {
+      SocketProfile copy = new SocketProfile();
+      copy.transport_ = transport_;
+      copy.sendHWM_ = sendHWM_;
+      copy.receiveHWM_ = receiveHWM_;
+      copy.sendBufferSize_ = sendBufferSize_;
+      copy.receiveBufferSize_ = receiveBufferSize_;
+      copy.linger_ = linger_;
+      return copy;
+   }
+
+   public Transport getTransport() {
+      return transport_;
+   }
+
+   public SocketProfile setTransport(Transport transport) {
+      transport_ = transport;
+      return this;
+   }
+
+   /**
+    * @param sendHWM messages queued for sending before the socket blocks (or
+    * drops, depending on type)
+    */
+   public SocketProfile setSendHWM(int sendHWM) {
+      sendHWM_ = sendHWM;
+      return this;
+   }
+
+   /**
+    * @param receiveHWM messages queued on receipt before the sender is held
+    * back
+    */
+   public SocketProfile setReceiveHWM(int receiveHWM) {
+      receiveHWM_ = receiveHWM;
+      return this;
+   }
+
+   /**
+    * @param sendBufferSize kernel send buffer in bytes (TCP only)
+    */
+   public SocketProfile setSendBufferSize(int sendBufferSize) {
+      sendBufferSize_ = sendBufferSize;
+      return this;
+   }
+
+   /**
+    * @param receiveBufferSize kernel receive buffer in bytes (TCP only)
+    */
+   public SocketProfile setReceiveBufferSize(int receiveBufferSize) {
+      receiveBufferSize_ = receiveBufferSize;
+      return this;
+   }
+
+   /**
+    * @param linger ms to keep trying to deliver queued messages after close,
+    * 0 to discard them
+    */
+   public SocketProfile setLinger(int linger) {
+      linger_ = linger;
+      return this;
+   }
+
+   /**
+    * @param port port number, which also identifies INPROC sockets
+    * @return endpoint to bind or connect to
+    */
+   public String getAddress(int port) {
+      switch (transport_) {
+         case INPROC:
+            return "inproc://pycromanager-" + port;
+         default:
+            return "tcp://127.0.0.1:" + port;
+      }
+   }
+
+   /**
+    * Set the options of this profile on a socket, before it is bound or
+    * connected
+    *
+    * @param socket
+    */
+   public void apply(ZMQ.Socket socket) {
+      if (sendHWM_ >= 0) {
+         socket.setSndHWM(sendHWM_);
+      }
+      if (receiveHWM_ >= 0) {
+         socket.setRcvHWM(receiveHWM_);
+      }
+      if (sendBufferSize_ >= 0) {
+         socket.setSendBufferSize(sendBufferSize_);
+      }
+      if (receiveBufferSize_ >= 0) {
+         socket.setReceiveBufferSize(receiveBufferSize_);
+      }
+      if (linger_ >= 0) {
+         socket.setLinger(linger_);
+      }
+   }
+
+}
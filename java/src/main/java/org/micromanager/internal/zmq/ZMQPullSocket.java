@@ -5,6 +5,9 @@
  */
 package org.micromanager.internal.zmq;
 
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -18,26 +21,72 @@ import org.zeromq.SocketType;
  */
 public class ZMQPullSocket<T> extends ZMQSocketWrapper {
    
-   Function<JSONObject, T> deserializationFunction_;
+   BiFunction<JSONObject, List<byte[]>, T> deserializationFunction_;
 
    public ZMQPullSocket(Function<JSONObject, T> deserializationFunction) {
+      this((JSONObject json, List<byte[]> binaryFrames) -> deserializationFunction.apply(json));
+   }
+
+   /**
+    * @param deserializationFunction converts JSON to objects. It is also given
+    * any binary frames that followed the JSON in the same message, so arrays
+    * can be read with ZMQUtil.decodeArray(JSONObject, List)
+    */
+   public ZMQPullSocket(BiFunction<JSONObject, List<byte[]>, T> deserializationFunction) {
       super(SocketType.PULL);
       deserializationFunction_ = deserializationFunction;
    }
 
    @Override
    public void initialize(int port) {
-      socket_ = context_.createSocket(type_);
+      socket_ = createSocket();
       port_ = port;
-      socket_.connect("tcp://127.0.0.1:" + port);
+      socket_.connect(profile_.getAddress(port));
+   }
+
+   /**
+    * Also receive from a socket bound on another port (e.g. one more of
+    * several senders). Messages from all of them are fair queued. Not thread
+    * safe with next(), so call it before receiving
+    *
+    * @param port
+    */
+   public void connect(int port) {
+      socket_.connect(profile_.getAddress(port));
    }
 
 
    public T next() {
+      return deserialize(socket_.recv());
+   }
+
+   /**
+    * Same as next, but gives up if no message arrives in time. A message that
+    * arrives later is returned by the next call
+    *
+    * @param timeoutMs
+    * @return
+    * @throws TimeoutException if no message arrived within timeoutMs
+    */
+   public T next(int timeoutMs) throws TimeoutException {
+      socket_.setReceiveTimeOut(timeoutMs);
+      byte[] message;
+      try {
+         message = socket_.recv();
+      } finally {
+         socket_.setReceiveTimeOut(-1);
+      }
+      if (message == null) {
+         throw new TimeoutException("No message within " + timeoutMs + " ms");
+      }
+      return deserialize(message);
+   }
+
+   private T deserialize(byte[] message) {
       try {
-         String message = new String(socket_.recv());
-         JSONObject json = new JSONObject(message);
-         return (T) deserializationFunction_.apply(json);
+         List<byte[]> binaryFrames = receiveRemainingFrames();
+         JSONObject json = new JSONObject(new String(message));
+         return (T) deserializationFunction_.apply(json, binaryFrames);
       } catch (JSONException ex) {
          ex.printStackTrace();
          throw new RuntimeException("problem deserializing");
@@ -5,10 +5,20 @@
  */
 package org.micromanager.internal.zmq;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import mmcorej.org.json.JSONException;
 import mmcorej.org.json.JSONObject;
-import static org.micromanager.internal.zmq.ZMQSocketWrapper.context_;
 import org.zeromq.SocketType;
 
 /**
@@ -17,19 +27,97 @@ import org.zeromq.SocketType;
  */
 public class ZMQPushSocket<T> extends ZMQSocketWrapper {
 
-   private Function<T, JSONObject> serializationFn_;
+   //Arrays smaller than this aren't worth encoding
+   private static final int MIN_ENCODED_BYTES = 1024;
+   //How long close waits for messages still being encoded or sent
+   private static final int CLOSE_TIMEOUT_S = 5;
+
+   private BiFunction<T, List<byte[]>, JSONObject> serializationFn_;
+   private volatile boolean binaryArrays_ = false;
+
+   //If set, binary frames are encoded on a pool of threads and sent in order
+   //from another, so that push only waits if too many messages are pending
+   private volatile ArrayCodec codec_;
+   private ExecutorService encoders_;
+   private ExecutorService sender_;
+   private Semaphore pendingMessages_;
+   private boolean codecSet_ = false;
+   private volatile boolean pushed_ = false;
+   //Failure to encode or send an earlier message, thrown by the next push
+   private final AtomicReference<Throwable> sendError_ = new AtomicReference<Throwable>();
 
    //Constructor for server the base class that runs on its own thread
    public ZMQPushSocket(Function<T, JSONObject> serializationFn) {
+      this((T t, List<byte[]> binaryFrames) -> serializationFn.apply(t));
+   }
+
+   /**
+    * @param serializationFn converts objects to JSON. If the list it is given
+    * is not null, it may add raw array data to it (e.g. with
+    * ZMQUtil.toJSON(Object, List)) which will be sent as extra message frames
+    */
+   public ZMQPushSocket(BiFunction<T, List<byte[]>, JSONObject> serializationFn) {
       super(SocketType.PUSH);
       serializationFn_ = serializationFn;
    }
 
+   /**
+    * Send primitive arrays as raw binary frames following the JSON, rather
+    * than Base64 encoded inside of it. The receiver must support multipart
+    * messages
+    *
+    * @param binaryArrays
+    */
+   public void setBinaryArrays(boolean binaryArrays) {
+      binaryArrays_ = binaryArrays;
+   }
+
+   public boolean isBinaryArrays() {
+      return binaryArrays_;
+   }
+
+   /**
+    * Number of messages that may queue for each connected receiver. With
+    * several receivers, messages go to the next one that has room, so a low
+    * limit distributes them by readiness. Only applies to receivers that
+    * connect afterwards
+    *
+    * @param hwm
+    */
+   public void setSendHWM(int hwm) {
+      socket_.setSndHWM(hwm);
+   }
+
+   /**
+    * Encode (i.e. compress) arrays before sending them. Implies binary arrays.
+    * Can only be called once, before the first push
+    *
+    * @param codec codec the receiver has agreed to, or null for none
+    * @param numThreads number of threads encoding messages in parallel
+    * @throws IllegalStateException if called again or after the first push
+    */
+   public synchronized void setCodec(ArrayCodec codec, int numThreads) {
+      if (codecSet_ || pushed_) {
+         throw new IllegalStateException("The codec can only be set once, before the first push");
+      }
+      codecSet_ = true;
+      if (codec == null) {
+         return;
+      }
+      binaryArrays_ = true;
+      AtomicInteger count = new AtomicInteger();
+      encoders_ = Executors.newFixedThreadPool(numThreads, (Runnable r)
+              -> new Thread(r, "ZMQ push encoder " + count.incrementAndGet()));
+      sender_ = Executors.newSingleThreadExecutor((Runnable r) -> new Thread(r, "ZMQ push sender"));
+      pendingMessages_ = new Semaphore(2 * numThreads);
+      codec_ = codec;
+   }
+
    @Override
    public void initialize(int port) {
-      socket_ = context_.createSocket(type_);
+      socket_ = createSocket();
       port_ = port;
-      socket_.bind("tcp://127.0.0.1:" + port);
+      socket_.bind(profile_.getAddress(port));
 //      executor_ = Executors.newSingleThreadExecutor(
 //              (Runnable r) -> new Thread(r, "ZMQ Pusher " ));
 //      executor_.submit(() -> {
@@ -43,15 +131,79 @@ public class ZMQPushSocket<T> extends ZMQSocketWrapper {
     * Serialize the object and send it out to any pulling sockets
     *
     * @param o
+    * @throws RuntimeException if encoding or sending an earlier message on
+    * the codec threads failed
     */
    public void push(T o) {
-      JSONObject json = serializationFn_.apply(o);
-      String s = json.toString();
-      socket_.send(s);
+      pushed_ = true;
+      Throwable error = sendError_.getAndSet(null);
+      if (error != null) {
+         throw new RuntimeException("Couldn't send an earlier message", error);
+      }
+      List<byte[]> binaryFrames = binaryArrays_ ? new ArrayList<byte[]>() : null;
+      JSONObject json = serializationFn_.apply(o, binaryFrames);
+      ArrayCodec codec = codec_;
+      if (codec == null) {
+         sendMultipart(json.toString().getBytes(), binaryFrames);
+         return;
+      }
+      try {
+         pendingMessages_.acquire();
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(ex);
+      }
+      CompletableFuture<byte[]> encoded = CompletableFuture.supplyAsync(() -> {
+         try {
+            ZMQUtil.encodeFrames(json, binaryFrames, codec, MIN_ENCODED_BYTES);
+         } catch (JSONException ex) {
+            throw new RuntimeException(ex);
+         }
+         return json.toString().getBytes();
+      }, encoders_);
+      //The sender sends messages in the order they were pushed
+      sender_.submit(() -> {
+         try {
+            sendMultipart(encoded.get(), binaryFrames);
+         } catch (InterruptedException ex) {
+            //Shutting down
+         } catch (ExecutionException ex) {
+            sendError_.compareAndSet(null, ex.getCause());
+         } catch (RuntimeException ex) {
+            sendError_.compareAndSet(null, ex);
+         } finally {
+            pendingMessages_.release();
+         }
+      });
 
 //      return executor_.submit(() -> {
 //         socket_.send(serializationFn_.apply(o).toString());
 //      });
    }
 
+   /**
+    * Send the messages still being encoded, waiting a few seconds at most,
+    * then close the socket
+    */
+   @Override
+   public void close() {
+      if (encoders_ != null) {
+         encoders_.shutdown();
+         sender_.shutdown();
+         try {
+            //the socket can't be closed while the sender may be using it
+            if (!sender_.awaitTermination(CLOSE_TIMEOUT_S, TimeUnit.SECONDS)) {
+               encoders_.shutdownNow();
+               sender_.shutdownNow();
+               sender_.awaitTermination(CLOSE_TIMEOUT_S, TimeUnit.SECONDS);
+            }
+         } catch (InterruptedException ex) {
+            encoders_.shutdownNow();
+            sender_.shutdownNow();
+            Thread.currentThread().interrupt();
+         }
+      }
+      super.close();
+   }
+
 }
@@ -1,13 +1,21 @@
 package org.micromanager.internal.zmq;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -16,21 +24,76 @@ import mmcorej.org.json.JSONException;
 import mmcorej.org.json.JSONObject;
 import static org.micromanager.internal.zmq.ZMQUtil.EXTERNAL_OBJECTS;
 import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
 
 /**
  * implements request reply server (ie the reply part)
  *
  * ecompasses both the master server and the
+ *
+ * By default runs a REP socket that handles one request at a time. Servers
+ * created with a number of workers instead run a ROUTER socket and execute
+ * requests on a pool of threads, so that a slow call from one client (or
+ * thread) doesn't block others
  */
 public class ZMQServer extends ZMQSocketWrapper {
 
+   /**
+    * Which requests a concurrent server guarantees to execute in the order
+    * they were received
+    */
+   public enum Ordering {
+      /** No guarantees, any request may run concurrently with any other */
+      NONE,
+      /** Requests from the same client socket run in order */
+      PER_CLIENT,
+      /** Requests on the same java object (same "hash-code") run in order */
+      PER_OBJECT
+   }
+
    private ExecutorService executor_;
+   private ExecutorService workers_;
+   //Where array results go for clients on the same host that ask for it
+   private volatile SharedMemoryRing sharedMemory_;
+   private int numWorkers_;
+   private Ordering ordering_;
+   //Last submitted request for each ordering key
+   private final ConcurrentHashMap<String, CompletableFuture<Void>> orderedTails_
+           = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+   //Each worker thread passes its replies back to the socket thread over
+   //inproc. All of them are kept so they can be closed with the server
+   private final ConcurrentLinkedQueue<ZMQ.Socket> allWorkerReplySockets_
+           = new ConcurrentLinkedQueue<ZMQ.Socket>();
+   private final ThreadLocal<ZMQ.Socket> workerReplySockets_ = ThreadLocal.withInitial(() -> {
+      ZMQ.Socket socket = context_.createSocket(SocketType.PUSH);
+      socket.connect(getReplyAddress());
+      allWorkerReplySockets_.add(socket);
+      return socket;
+   });
 //   protected static Set<Class> apiClasses_;
    private Set<String> packages_;
    private ZMQUtil util_;
 
    public static final String VERSION = "2.5.0";
 
+   //Arrays smaller than this aren't worth encoding
+   private static final int MIN_ENCODED_BYTES = 1024;
+   //How long close waits for requests that are executing to finish
+   private static final int WORKER_CLOSE_TIMEOUT_S = 5;
+
+   //Resolved methods/constructors, shared because exported objects are shared by all servers
+   private static final MethodResolver RESOLVER = new MethodResolver();
+
+   private static final Map<String, Class<?>> ARRAY_TYPE_CLASS_MAP = new HashMap<String, Class<?>>();
+
+   static {
+      ARRAY_TYPE_CLASS_MAP.put("byte[]", byte[].class);
+      ARRAY_TYPE_CLASS_MAP.put("short[]", short[].class);
+      ARRAY_TYPE_CLASS_MAP.put("int[]", int[].class);
+      ARRAY_TYPE_CLASS_MAP.put("float[]", float[].class);
+      ARRAY_TYPE_CLASS_MAP.put("double[]", double[].class);
+   }
+
    private final Function<Class, Object> classMapper_;
    private static ZMQServer masterServer_;
 
@@ -61,208 +124,381 @@ public class ZMQServer extends ZMQSocketWrapper {
       classMapper_ = classMapper;
    }
 
+   /**
+    * Create a server that executes requests concurrently on a pool of worker
+    * threads
+    *
+    * @param cl
+    * @param classMapper
+    * @param excludePaths
+    * @param numWorkers number of requests that may execute at the same time
+    * @param ordering which requests must execute in the order received
+    */
+   public ZMQServer(ClassLoader cl, Function<Class, Object> classMapper, String[] excludePaths,
+           int numWorkers, Ordering ordering) throws URISyntaxException, UnsupportedEncodingException {
+      super(SocketType.ROUTER, false);
+      cl_ = cl;
+      packages_ = ZMQUtil.getPackages(cl);
+      util_ = new ZMQUtil(cl, excludePaths);
+      classMapper_ = classMapper;
+      numWorkers_ = Math.max(1, numWorkers);
+      ordering_ = ordering;
+      initialize(port_);
+   }
+
+   /**
+    * Allow clients on the same host to receive array results (e.g. images)
+    * through a shared memory ring buffer rather than the socket, by setting
+    * "shared-memory" in their requests. They get the ring's location with the
+    * "get-shared-memory" command
+    *
+    * @param numSlots number of results that can wait to be read at once
+    * @param slotSize largest array in bytes. Bigger ones use the socket
+    * @throws IOException
+    */
+   public void enableSharedMemory(int numSlots, long slotSize) throws IOException {
+      if (sharedMemory_ != null) {
+         sharedMemory_.close();
+      }
+      sharedMemory_ = new SharedMemoryRing(numSlots, slotSize);
+   }
+
    public static ZMQServer getMasterServer() {
       return masterServer_;
    }
 
    @Override
    public void initialize(int port) {
+      if (type_ == SocketType.ROUTER) {
+         initializeConcurrent(port);
+         return;
+      }
       // Can we be initialized multiple times?  If so, we should cleanup
       // the multiple instances of executors and sockets cleanly
       executor_ = Executors.newSingleThreadExecutor(
               (Runnable r) -> new Thread(r, "ZMQ Server "));
       executor_.submit(() -> {
-         socket_ = context_.createSocket(type_);
+         socket_ = createSocket();
          port_ = port;
-         socket_.bind("tcp://127.0.0.1:" + port);
+         socket_.bind(profile_.getAddress(port));
 
          while (true) {
             String message = socket_.recvStr();
-            byte[] reply = null;
-            try {
-               reply = parseAndExecuteCommand(message);
-            } catch (Exception e) {
-               try {
-                  JSONObject json = new JSONObject();
-                  json.put("type", "exception");
-                  json.put("value", e.toString());
-                  reply = json.toString().getBytes();
-                  e.printStackTrace();
-
-               } catch (JSONException ex) {
-                  throw new RuntimeException(ex);
-                  // This wont happen          
-               }
-            }
-            socket_.send(reply);
+            List<byte[]> requestFrames = receiveRemainingFrames();
+            List<byte[]> replyFrames = new ArrayList<byte[]>();
+            byte[] reply = executeRequest(message, null, requestFrames, replyFrames);
+            sendMultipart(reply, replyFrames);
          }
       });
    }
 
+   private void initializeConcurrent(int port) {
+      AtomicInteger workerCount = new AtomicInteger();
+      workers_ = Executors.newFixedThreadPool(numWorkers_, (Runnable r)
+              -> new Thread(r, "ZMQ Server worker " + workerCount.incrementAndGet()));
+      executor_ = Executors.newSingleThreadExecutor(
+              (Runnable r) -> new Thread(r, "ZMQ Server "));
+      executor_.submit(() -> {
+         socket_ = createSocket();
+         port_ = port;
+         socket_.bind(profile_.getAddress(port));
+         ZMQ.Socket replies = context_.createSocket(SocketType.PULL);
+         replies.bind(getReplyAddress());
+         ZMQ.Poller poller = context_.createPoller(2);
+         int requestIndex = poller.register(socket_, ZMQ.Poller.POLLIN);
+         int replyIndex = poller.register(replies, ZMQ.Poller.POLLIN);
+
+         try {
+            pollConcurrent(poller, requestIndex, replyIndex, replies);
+         } finally {
+            poller.close();
+            replies.close();
+         }
+      });
+   }
+
+   /**
+    * Pass requests from the ROUTER socket to the workers and their replies
+    * back, until the server is closed
+    */
+   private void pollConcurrent(ZMQ.Poller poller, int requestIndex, int replyIndex,
+           ZMQ.Socket replies) {
+      while (!Thread.currentThread().isInterrupted()) {
+         if (poller.poll(-1) < 0) {
+            break;
+         }
+         //Completed requests: forward the reply with its envelope to the client
+         if (poller.pollin(replyIndex)) {
+            byte[] frame = replies.recv();
+            while (replies.hasReceiveMore()) {
+               socket_.sendMore(frame);
+               frame = replies.recv();
+            }
+            socket_.send(frame);
+         }
+         if (poller.pollin(requestIndex)) {
+            receiveConcurrentRequest();
+         }
+      }
+   }
+
+   /**
+    * Read a request from the ROUTER socket and hand it to the worker pool
+    */
+   private void receiveConcurrentRequest() {
+      //Routing envelope, ending with an empty delimiter frame
+      List<byte[]> envelope = new ArrayList<byte[]>();
+      byte[] frame = socket_.recv();
+      while (frame.length > 0 && socket_.hasReceiveMore()) {
+         envelope.add(frame);
+         frame = socket_.recv();
+      }
+      if (frame.length > 0 || !socket_.hasReceiveMore()) {
+         receiveRemainingFrames();
+         return; //Not a valid request, nowhere to send a reply
+      }
+      String message = new String(socket_.recv());
+      List<byte[]> requestFrames = receiveRemainingFrames();
+
+      String key = null;
+      JSONObject request = null;
+      if (ordering_ == Ordering.PER_CLIENT) {
+         key = new String(envelope.get(0), StandardCharsets.ISO_8859_1);
+      } else if (ordering_ == Ordering.PER_OBJECT) {
+         try {
+            request = new JSONObject(message);
+            key = getObjectKey(request);
+         } catch (JSONException e) {
+            //Reported to the client when the request is executed
+         }
+      }
+      JSONObject parsedRequest = request;
+      Runnable task = () -> {
+         List<byte[]> replyFrames = new ArrayList<byte[]>();
+         byte[] reply = executeRequest(message, parsedRequest, requestFrames, replyFrames);
+         ZMQ.Socket replySocket = workerReplySockets_.get();
+         for (byte[] address : envelope) {
+            replySocket.sendMore(address);
+         }
+         replySocket.sendMore(new byte[0]);
+         sendMultipart(replySocket, reply, replyFrames);
+      };
+
+      if (key == null) {
+         workers_.submit(task);
+      } else {
+         //Chain onto the previous request with the same key so they run in order
+         CompletableFuture<Void> next = orderedTails_.compute(key,
+                 (String k, CompletableFuture<Void> tail) -> tail == null
+                 ? CompletableFuture.runAsync(task, workers_)
+                 : tail.exceptionally((Throwable t) -> null).thenRunAsync(task, workers_));
+         String orderingKey = key;
+         next.whenComplete((Void v, Throwable t) -> orderedTails_.remove(orderingKey, next));
+      }
+   }
+
+   /**
+    * Get an exported object by its numeric "handle", or by its String
+    * "hash-code" for clients that don't send handles
+    *
+    * @param json request or argument referring to the object
+    * @return the object, or null if it doesn't exist
+    */
+   private static Object getExportedObject(JSONObject json) throws JSONException {
+      if (json.has("handle")) {
+         return EXTERNAL_OBJECTS.get(json.getLong("handle"));
+      }
+      return EXTERNAL_OBJECTS.get(json.getString("hash-code"));
+   }
+
+   /**
+    * @return String that is the same for all references to the same exported
+    * object, or null if json doesn't refer to one
+    */
+   private static String getObjectKey(JSONObject json) throws JSONException {
+      if (json.has("handle")) {
+         return HandleTable.toHashCode(json.getLong("handle"));
+      }
+      return json.has("hash-code") ? json.getString("hash-code") : null;
+   }
+
+   private String getReplyAddress() {
+      return "inproc://zmq-server-replies-" + port_;
+   }
+
+   /**
+    * Execute a request, converting any exception into an exception reply
+    *
+    * @param message JSON command
+    * @param request message already parsed, or null
+    */
+   private byte[] executeRequest(String message, JSONObject request, List<byte[]> requestFrames,
+           List<byte[]> replyFrames) {
+      try {
+         if (request == null) {
+            return parseAndExecuteCommand(message, requestFrames, replyFrames);
+         }
+         return executeCommand(request, requestFrames, replyFrames);
+      } catch (Throwable e) {
+         //Errors included, so one bad call can't stop the server answering
+         replyFrames.clear();
+         return exceptionReply(e).toString().getBytes();
+      }
+   }
+
+   private static JSONObject exceptionReply(Throwable e) {
+      try {
+         JSONObject json = new JSONObject();
+         json.put("type", "exception");
+         json.put("value", e.toString());
+         e.printStackTrace();
+         return json;
+      } catch (JSONException ex) {
+         throw new RuntimeException(ex);
+         // This wont happen
+      }
+   }
+
    public void close() {
       if (executor_ != null) {
          executor_.shutdownNow();
-         socket_.close();
+         //not there yet if closed straight after being created
+         if (socket_ != null) {
+            socket_.close();
+         }
+      }
+      if (workers_ != null) {
+         workers_.shutdownNow();
+         try {
+            //sockets can't be closed while a worker may be sending on them
+            workers_.awaitTermination(WORKER_CLOSE_TIMEOUT_S, TimeUnit.SECONDS);
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+         }
+         ZMQ.Socket socket;
+         while ((socket = allWorkerReplySockets_.poll()) != null) {
+            socket.close();
+         }
+      }
+      if (sharedMemory_ != null) {
+         sharedMemory_.close();
       }
    }
 
    protected byte[] getField(Object obj, JSONObject json) throws JSONException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
+      return getField(obj, json, null);
+   }
+
+   protected byte[] getField(Object obj, JSONObject json, List<byte[]> replyFrames) throws JSONException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
+      return serializeField(obj, json, replyFrames).toString().getBytes();
+   }
+
+   private JSONObject serializeField(Object obj, JSONObject json, List<byte[]> replyFrames) throws JSONException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
       String fieldName = json.getString("name");
       Object field = obj.getClass().getField(fieldName).get(obj);
       JSONObject serialized = new JSONObject();
-      util_.serialize(field, serialized, port_);
-      return serialized.toString().getBytes();
+      util_.serialize(field, serialized, port_, replyFrames,
+              json.optBoolean("class-references", false));
+      return serialized;
    }
    
    protected void setField(Object obj, JSONObject json) throws JSONException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
+      setField(obj, json, null);
+   }
+
+   protected void setField(Object obj, JSONObject json, List<byte[]> requestFrames) throws JSONException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
       String fieldName = json.getString("name");
+      Field field = obj.getClass().getField(fieldName);
       Object val = json.get("value");
-      if (val instanceof JSONObject) {
-         val = EXTERNAL_OBJECTS.get(((JSONObject) val).getString("hash-code"));
+      if (val instanceof JSONObject && ((JSONObject) val).has("binary-frame")) {
+         val = ZMQUtil.decodeArray((JSONObject) val, requestFrames);
+      } else if (val instanceof JSONObject) {
+         val = getExportedObject((JSONObject) val);
+      } else if (val instanceof String && ZMQUtil.ARRAY_CLASS_NAME_MAP.containsKey(field.getType())) {
+         //Base64 encoded primitive array, e.g. the result of an earlier batch command
+         val = ZMQUtil.decodeArray((String) val, field.getType());
       }
-      obj.getClass().getField(fieldName).set(obj, val);
+      field.set(obj, val);
    }
 
-   private LinkedList<LinkedList<Class>> getParamCombos(JSONObject message, Object[] argVals) throws JSONException,
-           UnsupportedEncodingException {
-
-      Object[] argClasses = new Object[message.getJSONArray("arguments").length()];
+   /**
+    * Deserialize the arguments of a method or constructor call
+    *
+    * @param message command containing "arguments" and "argument-types"
+    * @param requestFrames binary frames that followed the command
+    * @return argument values
+    */
+   private Object[] parseArguments(JSONObject message, List<byte[]> requestFrames)
+           throws JSONException {
+      JSONArray arguments = message.getJSONArray("arguments");
+      JSONArray argumentTypes = message.getJSONArray("argument-types");
+      Object[] argVals = new Object[arguments.length()];
       for (int i = 0; i < argVals.length; i++) {
-//         Class c = message.getJSONArray("arguments").get(i).getClass();
-         if (message.getJSONArray("arguments").get(i) instanceof JSONObject
-                 && message.getJSONArray("arguments").getJSONObject(i).has("hash-code")) {
+         if (arguments.get(i) instanceof JSONObject
+                 && getObjectKey(arguments.getJSONObject(i)) != null) {
             //Passed in a javashadow object as an argument
-            argVals[i] = EXTERNAL_OBJECTS.get(
-                    message.getJSONArray("arguments").getJSONObject(i).get("hash-code"));
-            //abstract to superclasses/interfaces in the API
-            Set<String> potentialPackages = new TreeSet<String>();
-            for (Class c : argVals[i].getClass().getInterfaces()) {
-               potentialPackages.add(c.getPackage().getName());
-            }
-            potentialPackages.add(argVals[i].getClass().getPackage().getName());
-            //build up a list of valid packages
-            Set<Class> apiClasses = new HashSet<Class>();
-            for (String packageName : potentialPackages) {
-               apiClasses.addAll(util_.getPackageClasses(packageName));
-            }
-
-            ParamList<Class> potentialClasses = new ParamList<Class>();
-            for (Class apiClass : apiClasses) {
-               if (apiClass.isAssignableFrom(argVals[i].getClass())) {
-                  potentialClasses.add(apiClass);
-               }
-            }
-            //add the class itself. This is needed for java internal classes
-            potentialClasses.add(argVals[i].getClass());
-            argClasses[i] = potentialClasses;
-         } else if (ZMQUtil.PRIMITIVE_NAME_CLASS_MAP.containsKey(message.getJSONArray("argument-types").get(i))) {
-            argClasses[i] = ZMQUtil.PRIMITIVE_NAME_CLASS_MAP.get(
-                    message.getJSONArray("argument-types").get(i));         
-            Object primitive = message.getJSONArray("arguments").get(i); //Double, Integer, Long, Boolean
-            argVals[i] = ZMQUtil.convertToPrimitiveClass(primitive, (Class) argClasses[i]);            
-         } else if (message.getJSONArray("argument-types").get(i).equals("java.lang.String")) {
+            argVals[i] = getExportedObject(arguments.getJSONObject(i));
+         } else if (ZMQUtil.PRIMITIVE_NAME_CLASS_MAP.containsKey(argumentTypes.get(i))) {
+            Object primitive = arguments.get(i); //Double, Integer, Long, Boolean
+            argVals[i] = ZMQUtil.convertToPrimitiveClass(primitive,
+                    ZMQUtil.PRIMITIVE_NAME_CLASS_MAP.get(argumentTypes.get(i)));
+         } else if (argumentTypes.get(i).equals("java.lang.String")) {
             //Strings are a special case because they're like a primitive but not quite
-            argClasses[i] = java.lang.String.class;
-            argVals[i] = message.getJSONArray("arguments").getString(i);
-         } else if (message.getJSONArray("argument-types").get(i).equals("java.lang.Object")) {
-            argClasses[i] = java.lang.Object.class;
-            argVals[i] = message.getJSONArray("arguments").get(i);
-         }
-      }
-
-      //Generate every possible combination of parameters given multiple interfaces for classes
-      //so that the correct method can be located
-      LinkedList<LinkedList<Class>> paramCombos = new LinkedList<LinkedList<Class>>();
-      for (Object argument : argClasses) {
-         if (argument instanceof ParamList) {
-            if (paramCombos.isEmpty()) {
-               //Add an entry for each possible type of the argument
-               for (Class c : (ArrayList<Class>) argument) {
-                  paramCombos.add(new LinkedList<Class>());
-                  paramCombos.getLast().add(c);
-               }
+            argVals[i] = arguments.getString(i);
+         } else if (argumentTypes.get(i).equals("java.lang.Object")) {
+            argVals[i] = arguments.get(i);
+         } else if (ARRAY_TYPE_CLASS_MAP.containsKey(argumentTypes.get(i))) {
+            //Primitive arrays, either Base64 encoded or in a binary frame of the message
+            Object serialized = arguments.get(i);
+            if (serialized instanceof JSONObject) {
+               argVals[i] = ZMQUtil.decodeArray((JSONObject) serialized, requestFrames);
             } else {
-               //multiply each existing combo by each possible value of the arg
-               LinkedList<LinkedList<Class>> newComboList = new LinkedList<LinkedList<Class>>();
-               for (Class c : (ArrayList<Class>) argument) {
-                  for (LinkedList<Class> argList : paramCombos) {
-                     LinkedList<Class> newArgList = new LinkedList<Class>(argList);
-                     newArgList.add(c);
-                     newComboList.add(newArgList);
-                  }
-               }
-               paramCombos = newComboList;
-            }
-         } else {
-            //only one type, simply add it to every combo
-            if (paramCombos.isEmpty()) {
-               //Add an entry for each possible type of the argument
-               paramCombos.add(new LinkedList<Class>());
-            }
-            for (LinkedList<Class> argList : paramCombos) {
-               argList.add((Class) argument);
+               argVals[i] = ZMQUtil.decodeArray((String) serialized,
+                       ARRAY_TYPE_CLASS_MAP.get(argumentTypes.get(i)));
             }
          }
       }
-      return paramCombos;
+      return argVals;
    }
 
-   private Object runConstructor(JSONObject message, Class baseClass) throws
+   private static String[] getArgumentTypes(JSONObject message) throws JSONException {
+      JSONArray argumentTypes = message.getJSONArray("argument-types");
+      String[] types = new String[argumentTypes.length()];
+      for (int i = 0; i < types.length; i++) {
+         types[i] = argumentTypes.getString(i);
+      }
+      return types;
+   }
+
+   private Object runConstructor(JSONObject message, Class baseClass, List<byte[]> requestFrames) throws
            JSONException, InstantiationException, IllegalAccessException,
            IllegalArgumentException, InvocationTargetException, UnsupportedEncodingException {
 
-      Object[] argVals = new Object[message.getJSONArray("arguments").length()];
-
-      LinkedList<LinkedList<Class>> paramCombos = getParamCombos(message, argVals);
+      Object[] argVals = parseArguments(message, requestFrames);
 
-      Constructor mathcingConstructor = null;
-      if (paramCombos.isEmpty()) { //Constructor with no argumetns
-         try {
-            mathcingConstructor = baseClass.getConstructor(new Class[]{});
-         } catch (Exception ex) {
-            throw new RuntimeException(ex);
-         }
-      } else { //Figure out which constructor matches given argumetns
-         for (LinkedList<Class> argList : paramCombos) {
-            Class[] classArray = argList.stream().toArray(Class[]::new);
-            try {
-               mathcingConstructor = baseClass.getConstructor(classArray);
-               break;
-            } catch (NoSuchMethodException e) {
-               //ignore
-            }
-         }
-      }
-      if (mathcingConstructor == null) {
-         throw new RuntimeException("No Matching method found with argumetn types");
+      MethodInvoker mathcingConstructor;
+      try {
+         mathcingConstructor = RESOLVER.resolveConstructor(baseClass,
+                 getArgumentTypes(message), argVals);
+      } catch (NoSuchMethodException e) {
+         throw new RuntimeException("No Matching method found with argumetn types", e);
       }
 
-      return mathcingConstructor.newInstance(argVals);
+      return mathcingConstructor.invoke(null, argVals);
    }
 
-   private byte[] runMethod(Object obj, JSONObject message) throws NoSuchMethodException, IllegalAccessException,
+   private JSONObject runMethod(Object obj, JSONObject message, List<byte[]> requestFrames,
+           List<byte[]> replyFrames) throws NoSuchMethodException, IllegalAccessException,
            JSONException, UnsupportedEncodingException {
       String methodName = message.getString("name");
-      Object[] argVals = new Object[message.getJSONArray("arguments").length()];
-      LinkedList<LinkedList<Class>> paramCombos = getParamCombos(message, argVals);
+      Object[] argVals = parseArguments(message, requestFrames);
 
-      Method matchingMethod = null;
-      if (paramCombos.isEmpty()) {
-         //0 argument funtion
-         matchingMethod = obj.getClass().getMethod(methodName);
-      } else {
-         for (LinkedList<Class> argList : paramCombos) {
-            Class[] classArray = argList.stream().toArray(Class[]::new);
-            try {
-               matchingMethod = obj.getClass().getMethod(methodName, classArray);
-               break;
-            } catch (NoSuchMethodException e) {
-               //ignore
-            }
-         }
-      }
-      if (matchingMethod == null) {
-         throw new RuntimeException("No Matching method found with argumetn types");
+      MethodInvoker matchingMethod;
+      try {
+         matchingMethod = RESOLVER.resolveMethod(obj.getClass(), methodName,
+                 getArgumentTypes(message), argVals);
+      } catch (NoSuchMethodException e) {
+         throw new RuntimeException("No Matching method found with argumetn types", e);
       }
 
       Object result;
@@ -271,15 +507,85 @@ public class ZMQServer extends ZMQSocketWrapper {
       } catch (InvocationTargetException ex) {
          ex.printStackTrace();
          result = ex.getCause();
+      } catch (InstantiationException ex) {
+         throw new RuntimeException(ex); //Wont happen for methods
+      }
+
+      SharedMemoryRing sharedMemory = sharedMemory_;
+      if (sharedMemory != null && result != null && message.optBoolean("shared-memory", false)
+              && ZMQUtil.ARRAY_CLASS_NAME_MAP.containsKey(result.getClass())) {
+         //Don't wait for the client to free a slot, send it over the socket instead
+         try {
+            JSONObject header = sharedMemory.put(result, 0);
+            if (header != null) {
+               return header;
+            }
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+         }
       }
 
       JSONObject serialized = new JSONObject();
-      util_.serialize(result, serialized, port_);
-      return serialized.toString().getBytes();
+      util_.serialize(result, serialized, port_, replyFrames,
+              message.optBoolean("class-references", false));
+      return serialized;
    }
 
    protected byte[] parseAndExecuteCommand(String message) throws Exception {
-      JSONObject request = new JSONObject(message);
+      return parseAndExecuteCommand(message, null, null);
+   }
+
+   /**
+    * Run a command and return the serialized reply
+    *
+    * @param message JSON command
+    * @param requestFrames binary frames that followed the command, holding
+    * array arguments
+    * @param replyFrames if the request asks for "binary-arrays", raw array data
+    * of the reply is added here to be sent after the JSON
+    * @return serialized reply
+    * @throws Exception
+    */
+   protected byte[] parseAndExecuteCommand(String message, List<byte[]> requestFrames,
+           List<byte[]> replyFrames) throws Exception {
+      return executeCommand(new JSONObject(message), requestFrames, replyFrames);
+   }
+
+   protected byte[] executeCommand(JSONObject request, List<byte[]> requestFrames,
+           List<byte[]> replyFrames) throws Exception {
+      if (!request.optBoolean("binary-arrays", false)) {
+         replyFrames = null;
+      }
+      //Objects exported while handling this request belong to the client that sent it
+      ClientSessions.Session session = null;
+      if (request.has("client-id")) {
+         session = ClientSessions.getSession(request.getString("client-id"));
+         if (request.has("lease-ms")) {
+            session.setLeaseMs(request.getLong("lease-ms"));
+         }
+         if (request.has("max-retained-bytes")) {
+            session.setMaxRetainedBytes(request.getLong("max-retained-bytes"));
+         }
+      }
+      ClientSessions.setCurrent(session);
+      try {
+         JSONObject reply = runCommand(request, requestFrames, replyFrames);
+         //Compress arrays in the reply with a codec from the "connect" reply
+         if (replyFrames != null && !replyFrames.isEmpty() && request.has("codec")) {
+            ArrayCodec codec = ArrayCodecs.get(request.getString("codec"));
+            if (codec == null) {
+               throw new RuntimeException("Unknown array codec: " + request.getString("codec"));
+            }
+            ZMQUtil.encodeFrames(reply, replyFrames, codec, MIN_ENCODED_BYTES);
+         }
+         return reply.toString().getBytes();
+      } finally {
+         ClientSessions.setCurrent(null);
+      }
+   }
+
+   private JSONObject runCommand(JSONObject request, List<byte[]> requestFrames,
+           List<byte[]> replyFrames) throws Exception {
       JSONObject reply;
       switch (request.getString("command")) {
          case "connect": {//Connect to master server
@@ -288,14 +594,27 @@ public class ZMQServer extends ZMQSocketWrapper {
             reply = new JSONObject();
             reply.put("type", "none");
             reply.put("version", VERSION);
-            return reply.toString().getBytes();
+            //Codecs that can be requested for arrays in replies
+            reply.put("codecs", ArrayCodecs.getNames());
+            return reply;
          }
          case "get-constructors": {
             String classpath = request.getString("classpath");
             reply = new JSONObject();
             reply.put("type", "none");
             reply.put("api", ZMQUtil.parseConstructors(classpath, classMapper_));
-            return reply.toString().getBytes();
+            return reply;
+         }
+         case "get-api": { //description of a class previously referred to by its ID
+            JSONObject descriptor = ZMQUtil.getClassDescriptor(request.getInt("class-id"));
+            reply = new JSONObject();
+            reply.put("type", "none");
+            reply.put("class-id", request.getInt("class-id"));
+            reply.put("class", descriptor.get("class"));
+            reply.put("interfaces", descriptor.get("interfaces"));
+            reply.put("fields", descriptor.get("fields"));
+            reply.put("api", descriptor.get("api"));
+            return reply;
          }
          case "constructor": { //construct a new object (or grab an exisitng instance)
             Class baseClass = Class.forName(request.getString("classpath"));
@@ -308,44 +627,76 @@ public class ZMQServer extends ZMQSocketWrapper {
             //if this is not one of the classes that is supposed to grab an existing 
             //object, construct a new one
             if (instance == null) {
-               instance = runConstructor(request, baseClass);
+               instance = runConstructor(request, baseClass, requestFrames);
             }
 
             if (request.has("new-port") && request.getBoolean("new-port")) {
-               //start the server for this class and store it
-               new ZMQServer(cl_, classMapper_, new String[]{"org.micromanager.internal"});
+               //start the server for this class and store it. It runs
+               //requests the same way as this one, concurrently or not
+               if (workers_ != null) {
+                  new ZMQServer(cl_, classMapper_, new String[]{"org.micromanager.internal"},
+                          numWorkers_, ordering_);
+               } else {
+                  new ZMQServer(cl_, classMapper_, new String[]{"org.micromanager.internal"});
+               }
             }
             reply = new JSONObject();
-            util_.serialize(instance, reply, port_);
-            return reply.toString().getBytes();
+            util_.serialize(instance, reply, port_, replyFrames,
+                    request.optBoolean("class-references", false));
+            return reply;
          }
          case "run-method": {
-            String hashCode = request.getString("hash-code");
-            Object target = EXTERNAL_OBJECTS.get(hashCode);
-            return runMethod(target, request);
+            Object target = getExportedObject(request);
+            return runMethod(target, request, requestFrames, replyFrames);
          }
          case "get-field": {
-            String hashCode = request.getString("hash-code");
-            Object target = EXTERNAL_OBJECTS.get(hashCode);
-            return getField(target, request);
+            Object target = getExportedObject(request);
+            return serializeField(target, request, replyFrames);
          }
          case "set-field": {
-            String hashCode = request.getString("hash-code");
-            Object target = EXTERNAL_OBJECTS.get(hashCode);
-            setField(target, request);
+            Object target = getExportedObject(request);
+            setField(target, request, requestFrames);
             reply = new JSONObject();
             reply.put("type", "none");
-            return reply.toString().getBytes();
+            return reply;
          }
          case "destructor": {
-            String hashCode = request.getString("hash-code");
             //TODO this is defined in superclass, maybe it would be good to merge these?
 //            System.out.println("remove object: " + hashCode);
-            EXTERNAL_OBJECTS.remove(hashCode);
+            if (request.has("handle")) {
+               EXTERNAL_OBJECTS.remove(request.getLong("handle"));
+            } else {
+               EXTERNAL_OBJECTS.remove(request.getString("hash-code"));
+            }
             reply = new JSONObject();
 
             reply.put("type", "none");
-            return reply.toString().getBytes();
+            return reply;
+         }
+         case "heartbeat": { //Renews the lease of the client, which happened above
+            reply = new JSONObject();
+            reply.put("type", "none");
+            return reply;
+         }
+         case "disconnect": { //Release everything held by the client
+            reply = new JSONObject();
+            reply.put("type", "none");
+            reply.put("released", ClientSessions.release(request.getString("client-id")));
+            return reply;
+         }
+         case "get-shared-memory": { //location of the ring, or none if not enabled
+            SharedMemoryRing sharedMemory = sharedMemory_;
+            return ZMQUtil.toJSON(sharedMemory == null ? null : sharedMemory.getDescriptor());
+         }
+         case "get-sessions": {
+            reply = new JSONObject();
+            reply.put("type", "none");
+            reply.put("sessions", ClientSessions.getStats());
+            reply.put("live-handles", EXTERNAL_OBJECTS.size());
+            return reply;
+         }
+         case "batch": {
+            return runBatch(request, requestFrames, replyFrames);
          }
          default:
             break;
@@ -353,8 +704,113 @@ public class ZMQServer extends ZMQSocketWrapper {
       throw new RuntimeException("Unknown Command");
    }
 
-}
+   /**
+    * Run a list of commands in order, returning all of their results (or
+    * exceptions) in one reply. A "hash-code", "handle", "value" or argument of the form
+    * {"result-of": i} is replaced by the result of the i-th command of the
+    * batch, so objects created by one command can be used by the next.
+    * Results sent through shared memory can't be referenced, since the array
+    * is only in the ring for the client to read
+    *
+    * @param request batch command, with the list of commands in "commands"
+    * @return reply with the result of each command in "value"
+    */
+   private JSONObject runBatch(JSONObject request, List<byte[]> requestFrames,
+           List<byte[]> replyFrames) throws JSONException {
+      JSONArray commands = request.getJSONArray("commands");
+      JSONObject[] results = new JSONObject[commands.length()];
+      JSONArray resultArray = new JSONArray();
+      for (int i = 0; i < commands.length(); i++) {
+         try {
+            JSONObject command = commands.getJSONObject(i);
+            if (command.getString("command").equals("batch")) {
+               throw new RuntimeException("Batch commands can't be nested");
+            }
+            if (request.optBoolean("class-references", false)) {
+               command.put("class-references", true);
+            }
+            substituteResults(command, results, i, replyFrames);
+            results[i] = runCommand(command, requestFrames, replyFrames);
+         } catch (Throwable e) {
+            results[i] = exceptionReply(e);
+         }
+         resultArray.put(results[i]);
+      }
+      JSONObject reply = new JSONObject();
+      reply.put("type", "batch");
+      reply.put("value", resultArray);
+      return reply;
+   }
+
+   private static void substituteResults(JSONObject command, JSONObject[] results, int index,
+           List<byte[]> replyFrames) throws JSONException {
+      if (isResultReference(command.opt("hash-code"))) {
+         command.put("hash-code", getReferencedResult(command.getJSONObject("hash-code"),
+                 results, index).getString("hash-code"));
+      }
+      if (isResultReference(command.opt("handle"))) {
+         command.put("handle", getReferencedResult(command.getJSONObject("handle"),
+                 results, index).getLong("handle"));
+      }
+      if (isResultReference(command.opt("value"))) {
+         command.put("value", asArgument(getReferencedResult(command.getJSONObject("value"),
+                 results, index), replyFrames));
+      }
+      JSONArray arguments = command.optJSONArray("arguments");
+      if (arguments != null) {
+         for (int i = 0; i < arguments.length(); i++) {
+            if (isResultReference(arguments.opt(i))) {
+               arguments.put(i, asArgument(getReferencedResult(arguments.getJSONObject(i),
+                       results, index), replyFrames));
+            }
+         }
+      }
+   }
+
+   private static boolean isResultReference(Object o) {
+      return o instanceof JSONObject && ((JSONObject) o).has("result-of");
+   }
+
+   private static JSONObject getReferencedResult(JSONObject reference, JSONObject[] results,
+           int index) throws JSONException {
+      int i = reference.getInt("result-of");
+      if (i < 0 || i >= index) {
+         throw new RuntimeException("Batch command " + index
+                 + " can only use the results of earlier commands, not " + i);
+      }
+      if (results[i].getString("type").equals("exception")) {
+         throw new RuntimeException("Batch command " + i + ", whose result is used by command "
+                 + index + ", failed");
+      }
+      return results[i];
+   }
 
-class ParamList<E> extends ArrayList<E> {
+   /**
+    * Convert a serialized result to the form it would take as an argument
+    * sent by the client
+    */
+   private static Object asArgument(JSONObject result, List<byte[]> replyFrames) throws JSONException {
+      if (result.has("shm-slot")) {
+         //The array is in the ring for the client to read and free, not here
+         throw new RuntimeException("Batch results sent through shared memory can't be "
+                 + "used by later commands");
+      } else if (result.getString("type").equals("unserialized-object")) {
+         JSONObject shadow = new JSONObject();
+         shadow.put("hash-code", result.getString("hash-code"));
+         shadow.put("handle", result.getLong("handle"));
+         return shadow;
+      } else if (result.has("binary-frame")) {
+         //frame indices refer to the reply, arguments are read from the request
+         Object array = ZMQUtil.decodeArray(result, replyFrames);
+         String encoded = ZMQUtil.encodeArray(array);
+         if (!replyFrames.contains(array)) {
+            BufferPool.getDefault().release(array);
+         }
+         return encoded;
+      } else if (result.has("value")) {
+         return result.get("value");
+      }
+      return JSONObject.NULL;
+   }
 
 }
@@ -1,7 +1,9 @@
 package org.micromanager.internal.zmq;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import static org.micromanager.internal.zmq.ZMQServer.DEFAULT_MASTER_PORT_NUMBER;
 import org.zeromq.SocketType;
@@ -13,6 +15,7 @@ import org.zeromq.ZMQ;
 public abstract class ZMQSocketWrapper {
 
    protected static ZContext context_;
+   private static int ioThreads_ = 1;
 
    //map of port numbers to servers, each of which has its own thread and base class
    private static ConcurrentHashMap<Integer, ZMQSocketWrapper> portSocketMap_
@@ -23,15 +26,46 @@ public abstract class ZMQSocketWrapper {
    protected SocketType type_;
    protected volatile ZMQ.Socket socket_;
    protected int port_;
+   protected final SocketProfile profile_;
 
    public ZMQSocketWrapper(SocketType type) {
+      this(type, true);
+   }
+
+   /**
+    * @param type socket type
+    * @param initialize if false, subclasses must call initialize(getPort())
+    * themselves once their own fields are set up
+    */
+   protected ZMQSocketWrapper(SocketType type, boolean initialize) {
       type_ = type;
-      if (context_ == null) {
-         context_ = new ZContext();
-      }
+      profile_ = SocketProfile.getProfile(type == SocketType.PUSH || type == SocketType.PULL
+              ? SocketProfile.Role.STREAM : SocketProfile.Role.CONTROL);
+      createContext();
       port_ = nextPortNumber(this);
 //      System.out.println("port: " + port_ + "\t\t" + this);
-      initialize(port_);
+      if (initialize) {
+         initialize(port_);
+      }
+   }
+
+   private static synchronized void createContext() {
+      if (context_ == null) {
+         context_ = new ZContext(ioThreads_);
+      }
+   }
+
+   /**
+    * Set the number of I/O threads of the context shared by all sockets. Must
+    * be called before the first socket is created
+    *
+    * @param ioThreads
+    */
+   public static synchronized void setIOThreads(int ioThreads) {
+      if (context_ != null) {
+         throw new IllegalStateException("ZMQ context already created");
+      }
+      ioThreads_ = ioThreads;
    }
 
    private static synchronized int nextPortNumber(ZMQSocketWrapper t) {
@@ -48,7 +82,58 @@ public abstract class ZMQSocketWrapper {
       return port_;
    }
 
+   /**
+    * @return endpoint the socket is bound or connected to
+    */
+   public String getAddress() {
+      return profile_.getAddress(port_);
+   }
+
    public abstract void initialize(int port);
+
+   /**
+    * Create a socket of this wrapper's type with the options of its profile
+    */
+   protected ZMQ.Socket createSocket() {
+      ZMQ.Socket socket = context_.createSocket(type_);
+      profile_.apply(socket);
+      return socket;
+   }
+
+   /**
+    * Send a message, followed by any binary frames that belong to it
+    *
+    * @param message first frame (JSON)
+    * @param binaryFrames additional frames, may be null or empty
+    */
+   protected void sendMultipart(byte[] message, List<byte[]> binaryFrames) {
+      sendMultipart(socket_, message, binaryFrames);
+   }
+
+   protected static void sendMultipart(ZMQ.Socket socket, byte[] message, List<byte[]> binaryFrames) {
+      if (binaryFrames == null || binaryFrames.isEmpty()) {
+         socket.send(message);
+         return;
+      }
+      socket.sendMore(message);
+      for (int i = 0; i < binaryFrames.size(); i++) {
+         socket.send(binaryFrames.get(i), i == binaryFrames.size() - 1 ? 0 : ZMQ.SNDMORE);
+      }
+   }
+
+   /**
+    * Receive any remaining frames of a multipart message whose first frame
+    * has already been read
+    *
+    * @return the remaining frames, empty if the message had only one frame
+    */
+   protected List<byte[]> receiveRemainingFrames() {
+      List<byte[]> frames = new ArrayList<byte[]>();
+      while (socket_.hasReceiveMore()) {
+         frames.add(socket_.recv());
+      }
+      return frames;
+   }
    
    public void close() {
       socket_.close();
@@ -5,39 +5,28 @@
  */
 package org.micromanager.internal.zmq;
 
-import java.io.File;
-import java.io.FilenameFilter;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.lang.reflect.*;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
-import java.net.URLDecoder;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.function.Predicate;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import mmcorej.org.json.JSONArray;
 import mmcorej.org.json.JSONException;
 import mmcorej.org.json.JSONObject;
@@ -50,15 +39,25 @@ public class ZMQUtil {
 
     private ClassLoader classLoader_;
     private String[] excludedPaths_;
-    private HashMap<String, Set<Class>> packageAPIClasses_ = new HashMap<String, Set<Class>>();
 
-   //TODO: associtate entries in here with a prticular client
-   //map of objects that exist in some client of the server
-   protected final static ConcurrentHashMap<String, Object> EXTERNAL_OBJECTS
-           = new ConcurrentHashMap<String, Object>();
+   //map of objects that exist in some client of the server. Objects exported
+   //to clients that identify themselves are also tracked by ClientSessions
+   protected final static HandleTable EXTERNAL_OBJECTS = new HandleTable();
+
+   //Descriptions of the API of classes sent out as unserialized objects, and
+   //the IDs clients can use to refer to them
+   private final static ConcurrentHashMap<Class, JSONObject> CLASS_DESCRIPTORS
+           = new ConcurrentHashMap<Class, JSONObject>();
+   private final static ConcurrentHashMap<Class, Integer> CLASS_IDS
+           = new ConcurrentHashMap<Class, Integer>();
+   private final static ConcurrentHashMap<Integer, Class> ID_CLASSES
+           = new ConcurrentHashMap<Integer, Class>();
+   private final static AtomicInteger NEXT_CLASS_ID = new AtomicInteger(0);
 
    public final static Set<Class> PRIMITIVES = new HashSet<Class>();
    public final static Map<String, Class<?>> PRIMITIVE_NAME_CLASS_MAP = new HashMap<String, Class<?>>();
+   public final static Map<Class<?>, String> ARRAY_CLASS_NAME_MAP = new HashMap<Class<?>, String>();
+   public final static Map<String, Class<?>> ARRAY_NAME_CLASS_MAP = new HashMap<String, Class<?>>();
 
    static {
       PRIMITIVES.add(Boolean.class);
@@ -78,6 +77,15 @@ public class ZMQUtil {
       PRIMITIVE_NAME_CLASS_MAP.put("long", long.class);
       PRIMITIVE_NAME_CLASS_MAP.put("float", float.class);
       PRIMITIVE_NAME_CLASS_MAP.put("double", double.class);
+
+      ARRAY_CLASS_NAME_MAP.put(byte[].class, "byte-array");
+      ARRAY_CLASS_NAME_MAP.put(short[].class, "short-array");
+      ARRAY_CLASS_NAME_MAP.put(int[].class, "int-array");
+      ARRAY_CLASS_NAME_MAP.put(float[].class, "float-array");
+      ARRAY_CLASS_NAME_MAP.put(double[].class, "double-array");
+      for (Map.Entry<Class<?>, String> e : ARRAY_CLASS_NAME_MAP.entrySet()) {
+         ARRAY_NAME_CLASS_MAP.put(e.getValue(), e.getKey());
+      }
    }
 
    public ZMQUtil(ClassLoader cl, String[] excludePaths) {
@@ -86,6 +94,8 @@ public class ZMQUtil {
    }
 
    private static final ByteOrder BYTE_ORDER = ByteOrder.BIG_ENDIAN;
+   //Binary frames are written in native order so the receiver can use them without swapping
+   private static final ByteOrder BINARY_BYTE_ORDER = ByteOrder.nativeOrder();
 
    protected static Object deserialize(byte[] message, Function<JSONObject, ?> deserializationFn) {
       try {
@@ -108,6 +118,21 @@ public class ZMQUtil {
     *
     */
    public static JSONObject toJSON(Object o) {
+      return toJSON(o, null);
+   }
+
+   /**
+    * Convert objects that will be serialized into JSON. If binaryFrames is not
+    * null, primitive arrays are not Base64 encoded into the JSON. Instead their
+    * raw bytes are appended to binaryFrames, and the JSON only holds their
+    * type, dtype, shape and the index of the frame holding the data
+    *
+    * @param o Object to be converted
+    * @param binaryFrames list to add raw array data to, or null to encode
+    * arrays inline
+    * @return JSON version of o, or null if it can't be directly converted
+    */
+   public static JSONObject toJSON(Object o, List<byte[]> binaryFrames) {
       JSONObject json = new JSONObject();
       try {
          if (o instanceof Exception) {
@@ -131,21 +156,17 @@ public class ZMQUtil {
             json.put("type", "object");
             json.put("class", "JSONObject");
             json.put("value", o.toString());
-         } else if (o.getClass().equals(byte[].class)) {
-            json.put("type", "byte-array");
-            json.put("value", encodeArray(o));
-         } else if (o.getClass().equals(short[].class)) {
-            json.put("type", "short-array");
-            json.put("value", encodeArray(o));
-         } else if (o.getClass().equals(double[].class)) {
-            json.put("type", "double-array");
-            json.put("value", encodeArray(o));
-         } else if (o.getClass().equals(int[].class)) {
-            json.put("type", "int-array");
-            json.put("value", encodeArray(o));
-         } else if (o.getClass().equals(float[].class)) {
-            json.put("type", "float-array");
-            json.put("value", encodeArray(o));
+         } else if (ARRAY_CLASS_NAME_MAP.containsKey(o.getClass())) {
+            json.put("type", ARRAY_CLASS_NAME_MAP.get(o.getClass()));
+            if (binaryFrames == null) {
+               json.put("value", encodeArray(o));
+            } else {
+               //Only describe the array here, the raw bytes go out as their own message frame
+               json.put("dtype", getDType(o.getClass(), BINARY_BYTE_ORDER));
+               json.put("shape", new JSONArray().put(Array.getLength(o)));
+               json.put("binary-frame", binaryFrames.size());
+               binaryFrames.add(toByteArray(o, BINARY_BYTE_ORDER));
+            }
          } else {
             return null;
          }
@@ -164,8 +185,41 @@ public class ZMQUtil {
     * null
     */
    public void serialize(Object o, JSONObject json, int port) {
+      serialize(o, json, port, null);
+   }
+
+   /**
+    * Same as above, but primitive arrays are sent out as separate binary frames
+    * rather than Base64 strings if binaryFrames is not null
+    *
+    * @param o Object to be serialized
+    * @param json JSONObject that will contain the serialized Object can not be
+    * null
+    * @param port port of the server the object is associated with
+    * @param binaryFrames list to add raw array data to, or null to encode
+    * arrays inline
+    */
+   public void serialize(Object o, JSONObject json, int port, List<byte[]> binaryFrames) {
+      serialize(o, json, port, binaryFrames, false);
+   }
+
+   /**
+    * Same as above, but if classReferences is true, objects that aren't
+    * directly serialized only carry the ID of their class rather than a full
+    * description of its API, which can be retrieved with getClassDescriptor
+    *
+    * @param o Object to be serialized
+    * @param json JSONObject that will contain the serialized Object can not be
+    * null
+    * @param port port of the server the object is associated with
+    * @param binaryFrames list to add raw array data to, or null to encode
+    * arrays inline
+    * @param classReferences send class IDs in place of API descriptions
+    */
+   public void serialize(Object o, JSONObject json, int port, List<byte[]> binaryFrames,
+           boolean classReferences) {
       try {
-         JSONObject converted = toJSON(o);
+         JSONObject converted = toJSON(o, binaryFrames);
          if (converted != null) {
             //Can be driectly converted into a serialized object (i.e. primitive)--copy into
             converted.keys().forEachRemaining(new Consumer<String>() {
@@ -183,65 +237,129 @@ public class ZMQUtil {
             //can construct a shadow version of it
             //Keep track of which objects have been sent out, so that garbage collection can be synchronized between
             //the two languages
-            String hash = Integer.toHexString(System.identityHashCode(o));
-            //Add a random UUID to account for the fact that there may be multiple
+            //Each call gets a new handle to account for the fact that there may be multiple
             //pythons shadows of the same object
-            hash += UUID.randomUUID();
-            EXTERNAL_OBJECTS.put(hash, o);
+            long handle = EXTERNAL_OBJECTS.add(o, ClientSessions.getCurrent());
             json.put("type", "unserialized-object");
             json.put("class", o.getClass().getName());
-            json.put("hash-code", hash);
+            //hash-code is the String form of the handle, for clients that don't know about handles
+            json.put("hash-code", HandleTable.toHashCode(handle));
+            json.put("handle", handle);
             json.put("port", port);
 
-            ArrayList<Class> apiInterfaces = new ArrayList<>();
-            if (o.getClass().getName().startsWith("java")) {
-               //Java classes
-               for (Class c : o.getClass().getInterfaces()) {
-                  apiInterfaces.add(c);
-               }
-               apiInterfaces.add(o.getClass());
+            if (classReferences) {
+               //client fetches the API once per class with the "get-api" command
+               json.put("class-id", getClassID(o.getClass()));
             } else {
-               //Non Java classes. Check to make sure only exposing things we mean to
-
-               Set<String> packageNames = new HashSet<String>();
-               //Search through all superclasses and interfaces
-               Class clazz = o.getClass();
-               do {
-                  apiInterfaces.add(clazz);
-                  for (Class inter : clazz.getInterfaces()) {
-                     apiInterfaces.add(inter);
-                  }
-                  clazz = clazz.getSuperclass();
-               } while (clazz != null);
+               JSONObject descriptor = getClassDescriptor(o.getClass());
+               json.put("interfaces", descriptor.get("interfaces"));
+               json.put("fields", descriptor.get("fields"));
+               json.put("api", descriptor.get("api"));
             }
+         }
+      } catch (JSONException e) {
+         throw new RuntimeException(e);
+      }
+   }
 
-            if (apiInterfaces.isEmpty()) {
-               throw new RuntimeException("Couldn't find " + o.getClass().getName()
-                       + " on classpath, or this is an internal class that was accidentally exposed");
-            }
-            //List all API interfaces this class implments in case its passed
-            //back as an argument to another function
-            JSONArray e = new JSONArray();
-            json.put("interfaces", e);
-            for (Class c : apiInterfaces) {
-               e.put(c.getName());
-            }
+   /**
+    * Get the ID used to refer to a class in serialized objects
+    *
+    * @param clazz
+    * @return ID that can be passed to getClassDescriptor
+    */
+   public static int getClassID(Class clazz) {
+      return CLASS_IDS.computeIfAbsent(clazz, (Class c) -> {
+         int id = NEXT_CLASS_ID.getAndIncrement();
+         ID_CLASSES.put(id, c);
+         return id;
+      });
+   }
 
-            //copy in all public fields of the object
-            JSONArray f = new JSONArray();
-            json.put("fields", f);
-            for (Field field : o.getClass().getFields()) {
-               int modifiers = field.getModifiers();
-               if (Modifier.isPublic(modifiers)) {
-                  f.put(field.getName());
-               }
+   /**
+    * Get the description of the API of a class given its ID
+    *
+    * @param classID ID returned by getClassID
+    * @return JSON with the class name, interfaces, fields and methods
+    * @throws JSONException
+    */
+   public static JSONObject getClassDescriptor(int classID) throws JSONException {
+      Class clazz = ID_CLASSES.get(classID);
+      if (clazz == null) {
+         throw new RuntimeException("Unknown class ID: " + classID);
+      }
+      return getClassDescriptor(clazz);
+   }
+
+   /**
+    * Get the description of the API of a class that gets sent along with
+    * unserialized objects. This is computed once per class and cached
+    *
+    * @param clazz
+    * @return JSON with the class name, interfaces, fields and methods
+    * @throws JSONException
+    */
+   public static JSONObject getClassDescriptor(Class clazz) throws JSONException {
+      JSONObject descriptor = CLASS_DESCRIPTORS.get(clazz);
+      if (descriptor == null) {
+         descriptor = parseClassDescriptor(clazz);
+         JSONObject existing = CLASS_DESCRIPTORS.putIfAbsent(clazz, descriptor);
+         if (existing != null) {
+            descriptor = existing;
+         }
+      }
+      return descriptor;
+   }
+
+   private static JSONObject parseClassDescriptor(Class objectClass) throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("class", objectClass.getName());
+      ArrayList<Class> apiInterfaces = new ArrayList<>();
+      if (objectClass.getName().startsWith("java")) {
+         //Java classes
+         for (Class c : objectClass.getInterfaces()) {
+            apiInterfaces.add(c);
+         }
+         apiInterfaces.add(objectClass);
+      } else {
+         //Non Java classes. Check to make sure only exposing things we mean to
+
+         Set<String> packageNames = new HashSet<String>();
+         //Search through all superclasses and interfaces
+         Class clazz = objectClass;
+         do {
+            apiInterfaces.add(clazz);
+            for (Class inter : clazz.getInterfaces()) {
+               apiInterfaces.add(inter);
             }
+            clazz = clazz.getSuperclass();
+         } while (clazz != null);
+      }
 
-            json.put("api", parseAPI(apiInterfaces));
+      if (apiInterfaces.isEmpty()) {
+         throw new RuntimeException("Couldn't find " + objectClass.getName()
+                 + " on classpath, or this is an internal class that was accidentally exposed");
+      }
+      //List all API interfaces this class implments in case its passed
+      //back as an argument to another function
+      JSONArray e = new JSONArray();
+      json.put("interfaces", e);
+      for (Class c : apiInterfaces) {
+         e.put(c.getName());
+      }
+
+      //copy in all public fields of the object
+      JSONArray f = new JSONArray();
+      json.put("fields", f);
+      for (Field field : objectClass.getFields()) {
+         int modifiers = field.getModifiers();
+         if (Modifier.isPublic(modifiers)) {
+            f.put(field.getName());
          }
-      } catch (JSONException e) {
-         throw new RuntimeException(e);
       }
+
+      json.put("api", parseAPI(apiInterfaces));
+      return json;
    }
 
    /**
@@ -251,49 +369,217 @@ public class ZMQUtil {
     * @return
     */
    public static String encodeArray(Object array) {
-      byte[] byteArray = null;
+      //The raw bytes and the Base64 ones are only needed until the String is made
+      BufferPool pool = BufferPool.getDefault();
+      byte[] raw = array instanceof byte[] ? (byte[]) array
+              : (byte[]) pool.take(byte[].class, Array.getLength(array) * getElementSize(array.getClass()));
+      if (raw != array) {
+         putArray(ByteBuffer.wrap(raw).order(BYTE_ORDER), array);
+      }
+      byte[] encoded = pool.takeScratch(4 * ((raw.length + 2) / 3));
+      int length = Base64.getEncoder().encode(raw, encoded);
+      String serialized = new String(encoded, 0, length, StandardCharsets.ISO_8859_1);
+      pool.release(encoded);
+      if (raw != array) {
+         pool.release(raw);
+      }
+      return serialized;
+   }
+
+   public static Object decodeArray(String serialized, Class arrayClass) {
+      byte[] chars = serialized.getBytes(StandardCharsets.ISO_8859_1);
+      byte[] raw = BufferPool.getDefault().takeScratch(chars.length / 4 * 3 + 3);
+      int length = Base64.getDecoder().decode(chars, raw);
+      Object array = fromByteArray(raw, length, arrayClass, BYTE_ORDER);
+      BufferPool.getDefault().release(raw);
+      return array;
+   }
+
+   /**
+    * Decode an array that was serialized either inline as a Base64 string or
+    * as a header pointing to one of the binary frames of the message
+    *
+    * @param json serialized array, as produced by toJSON
+    * @param binaryFrames extra frames of the message the array came in
+    * @return primitive array
+    * @throws JSONException
+    */
+   public static Object decodeArray(JSONObject json, List<byte[]> binaryFrames) throws JSONException {
+      Class arrayClass = ARRAY_NAME_CLASS_MAP.get(json.getString("type"));
+      if (arrayClass == null) {
+         throw new RuntimeException("unknown array type: " + json.getString("type"));
+      }
+      if (!json.has("binary-frame")) {
+         return decodeArray(json.getString("value"), arrayClass);
+      }
+      int frameIndex = json.getInt("binary-frame");
+      if (binaryFrames == null || frameIndex >= binaryFrames.size()) {
+         throw new RuntimeException("Missing binary frame " + frameIndex + " for array");
+      }
+      ByteOrder order = json.optString("dtype", ">").startsWith("<")
+              ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+      byte[] frame = binaryFrames.get(frameIndex);
+      if (json.has("codec")) {
+         ArrayCodec codec = ArrayCodecs.get(json.getString("codec"));
+         if (codec == null) {
+            throw new RuntimeException("Unknown array codec: " + json.getString("codec"));
+         }
+         byte[] decoded = codec.decode(frame, getElementSize(arrayClass), json.getInt("nbytes"));
+         if (arrayClass.equals(byte[].class)) {
+            return decoded;
+         }
+         Object array = fromByteArray(decoded, decoded.length, arrayClass, order);
+         BufferPool.getDefault().release(decoded);
+         return array;
+      }
+      return fromByteArray(frame, arrayClass, order);
+   }
+
+   /**
+    * Encode the binary frames of all the arrays in a message (as produced by
+    * toJSON) with a codec, marking their headers with the codec name and
+    * original size. Frames smaller than minBytes are left as they are
+    *
+    * @param message JSON message, searched recursively for array headers
+    * @param binaryFrames frames of the message, replaced by encoded versions
+    * @param codec
+    * @param minBytes
+    * @throws JSONException
+    */
+   public static void encodeFrames(Object message, List<byte[]> binaryFrames, ArrayCodec codec,
+           int minBytes) throws JSONException {
+      if (message instanceof JSONArray) {
+         JSONArray array = (JSONArray) message;
+         for (int i = 0; i < array.length(); i++) {
+            encodeFrames(array.get(i), binaryFrames, codec, minBytes);
+         }
+      } else if (message instanceof JSONObject) {
+         JSONObject json = (JSONObject) message;
+         Class arrayClass = json.has("binary-frame") && json.has("type")
+                 ? ARRAY_NAME_CLASS_MAP.get(json.optString("type")) : null;
+         if (arrayClass != null) {
+            int frameIndex = json.getInt("binary-frame");
+            byte[] raw = binaryFrames.get(frameIndex);
+            if (!json.has("codec") && raw.length >= minBytes) {
+               binaryFrames.set(frameIndex, codec.encode(raw, getElementSize(arrayClass)));
+               json.put("codec", codec.getName());
+               json.put("nbytes", raw.length);
+            }
+            return;
+         }
+         Iterator<String> keys = json.keys();
+         while (keys.hasNext()) {
+            encodeFrames(json.get(keys.next()), binaryFrames, codec, minBytes);
+         }
+      }
+   }
+
+   /**
+    * Copy array of primitives into its raw bytes
+    *
+    * @param array primitive array
+    * @param order byte order of the result
+    * @return raw bytes
+    */
+   public static byte[] toByteArray(Object array, ByteOrder order) {
       if (array instanceof byte[]) {
-         byteArray = (byte[]) array;
+         return (byte[]) array;
+      }
+      //Not pooled, since the bytes may be handed to a socket that sends them later
+      ByteBuffer buffer = ByteBuffer.allocate(Array.getLength(array) * getElementSize(array.getClass()));
+      putArray(buffer.order(order), array);
+      return buffer.array();
+   }
+
+   /**
+    * Convert raw bytes into an array of primitives
+    *
+    * @param byteArray raw bytes
+    * @param arrayClass class of the primitive array to create
+    * @param order byte order of byteArray
+    * @return primitive array
+    */
+   public static Object fromByteArray(byte[] byteArray, Class arrayClass, ByteOrder order) {
+      if (arrayClass.equals(byte[].class)) {
+         return byteArray;
+      }
+      return fromByteArray(byteArray, byteArray.length, arrayClass, order);
+   }
+
+   /**
+    * Convert the first length raw bytes into an array of primitives, taken
+    * from the BufferPool so that it can be released once it's no longer used
+    *
+    * @param byteArray raw bytes
+    * @param length number of bytes to convert
+    * @param arrayClass class of the primitive array to create
+    * @param order byte order of byteArray
+    * @return primitive array
+    */
+   public static Object fromByteArray(byte[] byteArray, int length, Class arrayClass, ByteOrder order) {
+      Object array = BufferPool.getDefault().take(arrayClass, length / getElementSize(arrayClass));
+      ByteBuffer buffer = ByteBuffer.wrap(byteArray, 0, length).order(order);
+      if (array instanceof byte[]) {
+         buffer.get((byte[]) array);
       } else if (array instanceof short[]) {
-         ByteBuffer buffer = ByteBuffer.allocate((((short[]) array)).length * Short.BYTES);
-         buffer.order(BYTE_ORDER).asShortBuffer().put((short[]) array);
-         byteArray = buffer.array();
+         buffer.asShortBuffer().get((short[]) array);
       } else if (array instanceof int[]) {
-         ByteBuffer buffer = ByteBuffer.allocate((((int[]) array)).length * Integer.BYTES);
-         buffer.order(BYTE_ORDER).asIntBuffer().put((int[]) array);
-         byteArray = buffer.array();
+         buffer.asIntBuffer().get((int[]) array);
       } else if (array instanceof double[]) {
-         ByteBuffer buffer = ByteBuffer.allocate((((double[]) array)).length * Double.BYTES);
-         buffer.order(BYTE_ORDER).asDoubleBuffer().put((double[]) array);
-         byteArray = buffer.array();
+         buffer.asDoubleBuffer().get((double[]) array);
+      } else {
+         buffer.asFloatBuffer().get((float[]) array);
+      }
+      return array;
+   }
+
+   private static void putArray(ByteBuffer buffer, Object array) {
+      if (array instanceof byte[]) {
+         buffer.put((byte[]) array);
+      } else if (array instanceof short[]) {
+         buffer.asShortBuffer().put((short[]) array);
+      } else if (array instanceof int[]) {
+         buffer.asIntBuffer().put((int[]) array);
+      } else if (array instanceof double[]) {
+         buffer.asDoubleBuffer().put((double[]) array);
       } else if (array instanceof float[]) {
-         ByteBuffer buffer = ByteBuffer.allocate((((float[]) array)).length * Float.BYTES);
-         buffer.order(BYTE_ORDER).asFloatBuffer().put((float[]) array);
-         byteArray = buffer.array();
+         buffer.asFloatBuffer().put((float[]) array);
+      } else {
+         throw new RuntimeException("unknown array type");
       }
-      return Base64.getEncoder().encodeToString(byteArray);
    }
 
-   public static Object decodeArray(String serialized, Class arrayClass) {
-      byte[] byteArray = Base64.getDecoder().decode(serialized);
+   /**
+    * numpy style dtype string (e.g. "<u2") for a primitive array class
+    */
+   static String getDType(Class arrayClass, ByteOrder order) {
+      String endian = order.equals(ByteOrder.LITTLE_ENDIAN) ? "<" : ">";
       if (arrayClass.equals(byte[].class)) {
-         return byteArray;
+         return endian + "u1";
       } else if (arrayClass.equals(short[].class)) {
-         short[] shorts = new short[byteArray.length / 2];
-         ByteBuffer.wrap(byteArray).asShortBuffer().get(shorts);
-         return shorts;
+         return endian + "u2";
       } else if (arrayClass.equals(int[].class)) {
-         int[] ints = new int[byteArray.length / 4];
-         ByteBuffer.wrap(byteArray).asIntBuffer().get(ints);
-         return ints;
+         return endian + "u4";
       } else if (arrayClass.equals(double[].class)) {
-         double[] doubles = new double[byteArray.length / 8];
-         ByteBuffer.wrap(byteArray).asDoubleBuffer().get(doubles);
-         return doubles;
+         return endian + "f8";
       } else if (arrayClass.equals(float[].class)) {
-         float[] floats = new float[byteArray.length / 4];
-         ByteBuffer.wrap(byteArray).asFloatBuffer().get(floats);
-         return floats;
+         return endian + "f4";
+      }
+      throw new RuntimeException("unknown array type");
+   }
+
+   /**
+    * @return size in bytes of one element of a primitive array class
+    */
+   static int getElementSize(Class arrayClass) {
+      if (arrayClass.equals(byte[].class)) {
+         return 1;
+      } else if (arrayClass.equals(short[].class)) {
+         return 2;
+      } else if (arrayClass.equals(int[].class) || arrayClass.equals(float[].class)) {
+         return 4;
+      } else if (arrayClass.equals(double[].class)) {
+         return 8;
       }
       throw new RuntimeException("unknown array type");
    }
@@ -368,151 +654,6 @@ public class ZMQUtil {
       return packages;
    }
 
-   public Set<Class> getPackageClasses(String packageName) throws UnsupportedEncodingException {
-        if (packageAPIClasses_.containsKey(packageName)) {
-            return packageAPIClasses_.get(packageName);
-        }
-
-       Set<Class> packageClasses = new HashSet<Class>();
-        if (packageName.contains("java.")) {
-           //java classes are different for some reason
-           //Aparently you can't find java classes in a package without a third party library
-        } else {
-           String path = packageName.replace('.', '/');
-           Enumeration<URL> resources;
-           try {
-              resources = classLoader_.getResources(path);
-           } catch (IOException ex) {
-              throw new RuntimeException("Invalid package name in ZMQ server: " + path);
-           }
-           List<File> dirs = new ArrayList<>();
-           while (resources.hasMoreElements()) {
-              URL resource = resources.nextElement();
-              String file = resource.getFile().replaceAll("^file:", "");
-              file = (String) URLDecoder.decode(file, "UTF-8");
-
-              dirs.add(new File(file));
-           }
-
-           for (File directory : dirs) {
-              if (directory.getAbsolutePath().contains(".jar")) {
-                 packageClasses.addAll(getClassesFromJarFile(directory));
-              } else {
-                 packageClasses.addAll(getClassesFromDirectory(packageName, directory));
-              }
-           }
-        }
-
-      //filter out internal classes
-      Stream<Class> clazzStream = packageClasses.stream();
-      Set<Class> classSet = clazzStream.filter(new Predicate<Class>() {
-         @Override
-         public boolean test(Class t) {
-            Package p = t.getPackage();
-            if (p == null) {
-               return true;
-            }
-            for (String exclude : excludedPaths_) {
-                if (t.getPackage().getName().contains(exclude)) {
-                    return false;
-                }
-            }
-            return true;
-         }
-      }).collect(Collectors.toSet());
-
-      packageAPIClasses_.put(packageName, classSet);
-      return classSet;
-   }
-
-   private static Collection<Class> getClassesFromJarFile(File directory) {
-      List<Class> classes = new ArrayList<Class>();
-
-      try {
-         String jarPath = Stream.of(directory.getAbsolutePath().split(File.pathSeparator))
-                 .flatMap((String t) -> Stream.of(t.split("!")))
-                 .filter((String t) -> t.contains(".jar")).findFirst().get();
-         JarFile jarFile = new JarFile(jarPath);
-         Enumeration<JarEntry> entries = jarFile.entries();
-         while (entries.hasMoreElements()) {
-            JarEntry entry = entries.nextElement();
-            String name = entry.getName();
-            //include classes but not inner classes
-            if (name.endsWith(".class") && !name.contains("$")) {
-               try {
-                  classes.add(Class.forName(name.replace("/", ".").
-                          substring(0, name.length() - 6)));
-               } catch (ClassNotFoundException ex) {
-//                  studio_.logs().logError("Class not found in ZMQ server: " + name);
-               }
-            }
-         }
-      } catch (IOException ex) {
-         throw new RuntimeException(ex);
-      }
-
-      return classes;
-   }
-
-   private static Collection<Class> getClassesFromDirectory(String packageName, File directory) {
-      List<Class> classes = new ArrayList<Class>();
-
-      // get jar files from top-level directory
-      List<File> jarFiles = listFiles(directory, new FilenameFilter() {
-         @Override
-         public boolean accept(File dir, String name) {
-            return name.endsWith(".jar");
-         }
-      }, false);
-
-      for (File file : jarFiles) {
-         classes.addAll(getClassesFromJarFile(file));
-      }
-
-      // get all class-files
-      List<File> classFiles = listFiles(directory, new FilenameFilter() {
-         @Override
-         public boolean accept(File dir, String name) {
-            return name.endsWith(".class");
-         }
-      }, true);
-
-      for (File file : classFiles) {
-         if (!file.isDirectory()) {
-            try {
-               classes.add(Class.forName(packageName + '.' + file.getName().
-                       substring(0, file.getName().length() - 6)));
-            } catch (ClassNotFoundException ex) {
-//               studio_.logs().logError("Failed to load class: " + file.getName());
-            }
-         }
-      }
-      return classes;
-   }
-
-   private static List<File> listFiles(File directory, FilenameFilter filter, boolean recurse) {
-      List<File> files = new ArrayList<File>();
-      File[] entries = directory.listFiles();
-
-      // Go over entries
-      for (File entry : entries) {
-         // If there is no filter or the filter accepts the
-         // file / directory, add it to the list
-         if (filter == null || filter.accept(directory, entry.getName())) {
-            files.add(entry);
-         }
-
-         // If the file is a directory and the recurse flag
-         // is set, recurse into the directory
-         if (recurse && entry.isDirectory()) {
-            files.addAll(listFiles(entry, filter, recurse));
-         }
-      }
-
-      // Return collection of files
-      return files;
-   }
-
    static Object convertToPrimitiveClass(Object primitive, Class argClass) {
       if (argClass.equals(boolean.class)) {
          return primitive;
@@ -0,0 +1,129 @@
+package org.micromanager.remote;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+
+/**
+ * Declarative test of which acquisition events a remote hook wants to see,
+ * so the others can pass without a round trip to python. Built from JSON
+ * like:
+ * <pre>
+ * {"axes": {"z": 0,                                 equal to a value
+ *           "channel": ["DAPI", "FITC"],            one of several values
+ *           "time": {"min": 0, "max": 100, "every": 10}},  range and step
+ *  "has": ["z"],        keys the event must have (e.g. a z position)
+ *  "every": 2}          only every nth event that passes all the above
+ * </pre>
+ * All parts are optional and all must be satisfied. Axis conditions are
+ * tested against the "axes" of the event's JSON, and an event without the
+ * axis doesn't match
+ */
+class EventFilter {
+
+   private final List<AxisCondition> axisConditions_ = new ArrayList<AxisCondition>();
+   private final List<String> requiredKeys_ = new ArrayList<String>();
+   private final int every_;
+   private long numMatched_ = 0;
+
+   EventFilter(JSONObject spec) throws JSONException {
+      JSONObject axes = spec.optJSONObject("axes");
+      if (axes != null) {
+         Iterator<String> names = axes.keys();
+         while (names.hasNext()) {
+            String name = names.next();
+            axisConditions_.add(new AxisCondition(name, axes.get(name)));
+         }
+      }
+      JSONArray has = spec.optJSONArray("has");
+      if (has != null) {
+         for (int i = 0; i < has.length(); i++) {
+            requiredKeys_.add(has.getString(i));
+         }
+      }
+      every_ = Math.max(1, spec.optInt("every", 1));
+   }
+
+   /**
+    * @param event JSON of an acquisition event
+    * @return true if the event should go to python
+    * @throws JSONException
+    */
+   synchronized boolean matches(JSONObject event) throws JSONException {
+      for (String key : requiredKeys_) {
+         if (!event.has(key)) {
+            return false;
+         }
+      }
+      if (!axisConditions_.isEmpty()) {
+         JSONObject axes = event.optJSONObject("axes");
+         if (axes == null) {
+            return false;
+         }
+         for (AxisCondition condition : axisConditions_) {
+            if (!condition.matches(axes.opt(condition.axis_))) {
+               return false;
+            }
+         }
+      }
+      return numMatched_++ % every_ == 0;
+   }
+
+   private static class AxisCondition {
+
+      private final String axis_;
+      //equal to one of these, if not null
+      private final List<Object> values_;
+      //otherwise, a numeric range and step
+      private final double min_, max_, step_;
+
+      AxisCondition(String axis, Object spec) throws JSONException {
+         axis_ = axis;
+         if (spec instanceof JSONObject) {
+            JSONObject range = (JSONObject) spec;
+            values_ = null;
+            min_ = range.optDouble("min", Double.NEGATIVE_INFINITY);
+            max_ = range.optDouble("max", Double.POSITIVE_INFINITY);
+            step_ = range.optDouble("every", 0);
+            if (step_ > 0 && Double.isInfinite(min_)) {
+               throw new RuntimeException("Axis " + axis + ": \"every\" needs a \"min\" to count from");
+            }
+         } else {
+            values_ = new ArrayList<Object>();
+            if (spec instanceof JSONArray) {
+               for (int i = 0; i < ((JSONArray) spec).length(); i++) {
+                  values_.add(((JSONArray) spec).get(i));
+               }
+            } else {
+               values_.add(spec);
+            }
+            min_ = max_ = step_ = 0;
+         }
+      }
+
+      boolean matches(Object value) {
+         if (value == null) {
+            return false;
+         }
+         if (values_ != null) {
+            for (Object v : values_) {
+               if (value instanceof Number && v instanceof Number
+                       ? ((Number) value).doubleValue() == ((Number) v).doubleValue()
+                       : value.toString().equals(v.toString())) {
+                  return true;
+               }
+            }
+            return false;
+         }
+         if (!(value instanceof Number)) {
+            return false;
+         }
+         double d = ((Number) value).doubleValue();
+         return d >= min_ && d <= max_ && (step_ <= 0 || (d - min_) % step_ == 0);
+      }
+   }
+
+}
@@ -0,0 +1,160 @@
+package org.micromanager.remote;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.acqj.api.AcquisitionEvent;
+import org.micromanager.acqj.api.AcquisitionInterface;
+
+/**
+ * Compact description of a multi-dimensional acquisition, expanded into
+ * events one at a time as they're needed, so that the first event can run
+ * straight away and memory use doesn't depend on the number of events.
+ *
+ * <pre>
+ * {"axes": [                      outermost first, i.e. the order of events
+ *    {"name": "time", "count": 100,
+ *     "fields": {"min_start_time": {"start": 0, "step": 5}}},
+ *    {"name": "position", "count": 2,
+ *     "field-values": [{"x": 0, "y": 0}, {"x": 100, "y": 0}]},
+ *    {"name": "z", "count": 50, "fields": {"z": {"start": -10, "step": 0.5}}},
+ *    {"name": "channel", "values": ["DAPI", "FITC"],
+ *     "field-values": [{"channel": {"group": "Channel", "config": "DAPI"}},
+ *                      {"channel": {"group": "Channel", "config": "FITC"}}]}],
+ *  "template": {"exposure": 10},  fields every event has
+ *  "finished": true}              end with the acquisition finished event
+ * </pre>
+ * Each axis goes through "count" indices (from "start", default 0), or
+ * through explicit "values". Its "fields" are numbers set on each event as
+ * start + step * (number of steps along the axis), and its "field-values"
+ * are fields set for each step. The resulting JSON is what
+ * AcquisitionEvent.fromJSON reads
+ */
+class EventSpec implements Iterator<AcquisitionEvent> {
+
+   private final AcquisitionInterface acq_;
+   private final JSONObject template_;
+   private final Axis[] axes_;
+   private final boolean finished_;
+   //step along each axis of the next event, like the digits of an odometer
+   private final int[] steps_;
+   private boolean exhausted_;
+   private boolean finishedSent_ = false;
+
+   EventSpec(JSONObject spec, AcquisitionInterface acq) throws JSONException {
+      acq_ = acq;
+      template_ = spec.has("template") ? spec.getJSONObject("template") : new JSONObject();
+      finished_ = spec.optBoolean("finished", false);
+      JSONArray axes = spec.getJSONArray("axes");
+      axes_ = new Axis[axes.length()];
+      boolean empty = false;
+      for (int i = 0; i < axes_.length; i++) {
+         axes_[i] = new Axis(axes.getJSONObject(i));
+         empty |= axes_[i].numSteps_ == 0;
+      }
+      steps_ = new int[axes_.length];
+      exhausted_ = empty;
+   }
+
+   /**
+    * @return true if the last event will be the acquisition finished event
+    */
+   boolean isFinished() {
+      return finished_;
+   }
+
+   @Override
+   public boolean hasNext() {
+      return !exhausted_ || (finished_ && !finishedSent_);
+   }
+
+   @Override
+   public AcquisitionEvent next() {
+      if (exhausted_) {
+         if (finished_ && !finishedSent_) {
+            finishedSent_ = true;
+            return AcquisitionEvent.createAcquisitionFinishedEvent(acq_);
+         }
+         throw new NoSuchElementException();
+      }
+      try {
+         AcquisitionEvent event = AcquisitionEvent.fromJSON(build(), acq_);
+         advance();
+         return event;
+      } catch (JSONException ex) {
+         throw new RuntimeException("Incorrect format for acquisition event spec", ex);
+      }
+   }
+
+   private JSONObject build() throws JSONException {
+      //Nested values of the template are shared, since fromJSON only reads them
+      JSONObject json = new JSONObject();
+      Iterator<String> keys = template_.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         json.put(key, template_.get(key));
+      }
+      JSONObject axes = new JSONObject();
+      for (int i = 0; i < axes_.length; i++) {
+         axes_[i].apply(steps_[i], json, axes);
+      }
+      json.put("axes", axes);
+      return json;
+   }
+
+   private void advance() {
+      for (int i = axes_.length - 1; i >= 0; i--) {
+         if (++steps_[i] < axes_[i].numSteps_) {
+            return;
+         }
+         steps_[i] = 0;
+      }
+      exhausted_ = true; //every axis has wrapped around
+   }
+
+   private static class Axis {
+
+      private final String name_;
+      private final int numSteps_;
+      private final int start_;
+      //explicit axis values, or null for start + step
+      private final JSONArray values_;
+      private final JSONObject fields_;
+      private final JSONArray fieldValues_;
+
+      Axis(JSONObject json) throws JSONException {
+         name_ = json.getString("name");
+         values_ = json.optJSONArray("values");
+         numSteps_ = values_ != null ? values_.length() : json.getInt("count");
+         start_ = json.optInt("start", 0);
+         fields_ = json.optJSONObject("fields");
+         fieldValues_ = json.optJSONArray("field-values");
+         if (fieldValues_ != null && fieldValues_.length() < numSteps_) {
+            throw new RuntimeException("Axis " + name_ + " has fewer field-values than steps");
+         }
+      }
+
+      void apply(int step, JSONObject event, JSONObject axes) throws JSONException {
+         axes.put(name_, values_ != null ? values_.get(step) : start_ + step);
+         if (fields_ != null) {
+            Iterator<String> keys = fields_.keys();
+            while (keys.hasNext()) {
+               String key = keys.next();
+               JSONObject field = fields_.getJSONObject(key);
+               event.put(key, field.optDouble("start", 0) + step * field.optDouble("step", 0));
+            }
+         }
+         if (fieldValues_ != null) {
+            JSONObject values = fieldValues_.getJSONObject(step);
+            Iterator<String> keys = values.keys();
+            while (keys.hasNext()) {
+               String key = keys.next();
+               event.put(key, values.get(key));
+            }
+         }
+      }
+   }
+
+}
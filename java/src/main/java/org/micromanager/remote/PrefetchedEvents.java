@@ -0,0 +1,75 @@
+package org.micromanager.remote;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import mmcorej.org.json.JSONObject;
+
+/**
+ * Answers for events sent ahead of time, in the order the events were
+ * submitted. They are looked up by the serialized event (its axes, positions
+ * and settings) rather than by identity, since the engine may run a copy of a
+ * submitted event, or a sequence merged from several of them.
+ *
+ * Events run in the order they were submitted, so taking the answer for one
+ * event drops those of the events submitted before it. Those never reached
+ * the hook in the form they were sent (e.g. they were merged into a sequence,
+ * or changed or deleted by an earlier hook). Thread safe
+ *
+ * @param <T> answer for an event
+ */
+class PrefetchedEvents<T> {
+
+   private final ArrayDeque<Entry<T>> entries_ = new ArrayDeque<Entry<T>>();
+
+   /**
+    * @param event serialized event, as it was submitted
+    * @param answer
+    */
+   synchronized void add(JSONObject event, T answer) {
+      entries_.add(new Entry<T>(event.toString(), answer));
+   }
+
+   /**
+    * Remove the answer for the first event with the same serialized form,
+    * and those of all events before it
+    *
+    * @param event serialized event, as it reached the hook
+    * @return the answer, or null if the event wasn't sent ahead
+    */
+   synchronized T take(JSONObject event) {
+      String key = event.toString();
+      Iterator<Entry<T>> it = entries_.iterator();
+      int index = 0;
+      while (it.hasNext() && !it.next().key_.equals(key)) {
+         index++;
+      }
+      if (index == entries_.size()) {
+         //leave the others for the events that are still to come
+         return null;
+      }
+      for (int i = 0; i < index; i++) {
+         entries_.poll();
+      }
+      return entries_.poll().answer_;
+   }
+
+   synchronized int size() {
+      return entries_.size();
+   }
+
+   synchronized void clear() {
+      entries_.clear();
+   }
+
+   private static class Entry<T> {
+
+      private final String key_;
+      private final T answer_;
+
+      Entry(String key, T answer) {
+         key_ = key;
+         answer_ = answer;
+      }
+   }
+
+}
@@ -5,7 +5,13 @@
  */
 package org.micromanager.remote;
 
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONException;
 import mmcorej.org.json.JSONObject;
 import org.micromanager.acqj.api.AcquisitionEvent;
 import org.micromanager.acqj.api.AcquisitionHook;
@@ -14,40 +20,243 @@ import org.micromanager.internal.zmq.ZMQPullSocket;
 import org.micromanager.internal.zmq.ZMQPushSocket;
 
 /**
+ * Sends events to python to be modified or deleted before they run.
+ *
+ * Normally each event waits for its reply from python. In lookahead mode,
+ * events are sent in batches of {"events": [...]} as soon as the event source
+ * receives them, python replies with {"events": [...]} holding the modified
+ * events ({} for deleted ones) in the same order, and run only has to pick up
+ * the answer that is (usually) already there. Replies arrive in the order
+ * messages were sent, which is how they're matched up
  *
  * @author henrypinkard
  */
 public class RemoteAcqHook implements AcquisitionHook {
 
-   ZMQPushSocket<AcquisitionEvent> pushSocket_;
-   ZMQPullSocket<AcquisitionEvent> pullSocket_;
+   ZMQPushSocket<JSONObject> pushSocket_;
+   ZMQPullSocket<JSONObject> pullSocket_;
+   private final AcquisitionInterface acq_;
+
+   private volatile int batchSize_ = 0;
+   private volatile int timeoutMs_ = -1;
+   //Events python doesn't want to see pass straight through, if set
+   private volatile EventFilter filter_;
+
+   //Messages sent to python whose replies haven't been read yet, in order
+   private final ArrayDeque<Pending> pending_ = new ArrayDeque<Pending>();
+   //Events that were sent ahead in a batch, or filtered out
+   private static final Prefetched PASS_THROUGH = new Prefetched(null, -1);
+   private final PrefetchedEvents<Prefetched> prefetched_ = new PrefetchedEvents<Prefetched>();
 
    public RemoteAcqHook(AcquisitionInterface acq) {
-      pushSocket_ = new ZMQPushSocket<AcquisitionEvent>(
-              new Function<AcquisitionEvent, JSONObject>() {
+      acq_ = acq;
+      pushSocket_ = new ZMQPushSocket<JSONObject>(
+              new Function<JSONObject, JSONObject>() {
          @Override
-         public JSONObject apply(AcquisitionEvent t) {
-            return t.toJSON();
+         public JSONObject apply(JSONObject t) {
+            return t;
          }
       });
 
-      pullSocket_ = new ZMQPullSocket<AcquisitionEvent>(
-              new Function<JSONObject, AcquisitionEvent>() {
+      pullSocket_ = new ZMQPullSocket<JSONObject>(
+              new Function<JSONObject, JSONObject>() {
          @Override
-         public AcquisitionEvent apply(JSONObject t) {
-            if (t.length() == 0) {
-               return null; //Acq event has been deleted
-            }
-            return AcquisitionEvent.fromJSON(t, acq);
+         public JSONObject apply(JSONObject t) {
+            return t;
          }
       });
    }
 
+   /**
+    * Send events to python ahead of time, as soon as the event source of the
+    * acquisition receives them, rather than one at a time as they run. Python
+    * then sees events before the hardware has reached them, so this is only
+    * for hooks that don't depend on the state of the hardware. Only events
+    * reaching the hook as they came from the event source can be answered
+    * ahead of time, so this should be the first hook. Others are sent one at
+    * a time as usual, as are events expanded from an event spec, which are
+    * never all known up front. So are hardware sequences the engine merges
+    * from several submitted events: python has already seen their parts, but
+    * their answers can't be combined into one for the sequence. Must be
+    * called before the first events are submitted
+    *
+    * @param batchSize most events sent together in one message
+    */
+   public void setLookahead(int batchSize) {
+      if (!(acq_ instanceof RemoteAcquisition)) {
+         throw new RuntimeException("Lookahead requires the events of a remote acquisition");
+      }
+      batchSize_ = Math.max(1, batchSize);
+      ((RemoteAcquisition) acq_).getEventSource().addLookaheadHook(this);
+   }
+
+   /**
+    * Don't wait indefinitely for python. If the reply to an event doesn't
+    * come in time, the hook throws like it does for any other error, so a
+    * stalled python hook stops the acquisition rather than freezing it
+    *
+    * @param timeoutMs longest wait for a reply, negative for no limit
+    */
+   public void setTimeout(int timeoutMs) {
+      timeoutMs_ = timeoutMs;
+   }
+
+   /**
+    * Only send python the events it's interested in, letting the others run
+    * as they are without waiting for a reply. See EventFilter for the format.
+    * Must be called before the first event
+    *
+    * @param filterJSON e.g. {"axes": {"z": 0}} to only see the first z slice
+    * @throws JSONException if the filter isn't valid JSON
+    */
+   public void setFilter(String filterJSON) throws JSONException {
+      filter_ = filterJSON == null ? null : new EventFilter(new JSONObject(filterJSON));
+   }
+
+   /**
+    * Send upcoming events to python in batches. Called by the event source
+    * thread
+    *
+    * @param events events about to be submitted to the acquisition
+    */
+   void prefetch(List<AcquisitionEvent> events) {
+      Pending batch = null;
+      JSONArray batchJSON = null;
+      for (AcquisitionEvent event : events) {
+         //These never reach hooks
+         if (event.isAcquisitionFinishedEvent() || event.isAcquisitionSequenceEndEvent()) {
+            continue;
+         }
+         JSONObject json = event.toJSON();
+         if (!wanted(json)) {
+            prefetched_.add(json, PASS_THROUGH);
+            continue;
+         }
+         if (batch == null) {
+            batch = new Pending(true);
+            batchJSON = new JSONArray();
+         }
+         prefetched_.add(json, new Prefetched(batch, batchJSON.length()));
+         batchJSON.put(json);
+         if (batchJSON.length() >= batchSize_) {
+            send(batch, batchJSON);
+            batch = null;
+         }
+      }
+      if (batch != null) {
+         send(batch, batchJSON);
+      }
+   }
+
    @Override
    public AcquisitionEvent run(AcquisitionEvent event) {
-      pushSocket_.push(event);
-      AcquisitionEvent ae = pullSocket_.next();
-      return ae;
+      JSONObject json = event.toJSON();
+      Prefetched prefetched = null;
+      List<AcquisitionEvent> sequence = event.getSequence();
+      if (sequence != null && sequence.size() > 1) {
+         //The parts' answers are dropped, and the sequence goes on its own
+         for (AcquisitionEvent part : sequence) {
+            prefetched_.take(part.toJSON());
+         }
+      } else {
+         prefetched = prefetched_.take(json);
+      }
+      if (prefetched == PASS_THROUGH) {
+         return event;
+      } else if (prefetched != null) {
+         JSONArray results = (JSONArray) awaitReply(prefetched.batch_);
+         try {
+            return toEvent(results.getJSONObject(prefetched.index_));
+         } catch (JSONException ex) {
+            throw new RuntimeException(ex);
+         }
+      }
+      if (!wanted(json)) {
+         return event;
+      }
+      Pending single = new Pending(false);
+      send(single, json);
+      return toEvent((JSONObject) awaitReply(single));
+   }
+
+   /**
+    * @return true if the event passes the filter, if there is one
+    */
+   private boolean wanted(JSONObject json) {
+      EventFilter filter = filter_;
+      if (filter == null) {
+         return true;
+      }
+      try {
+         return filter.matches(json);
+      } catch (JSONException ex) {
+         throw new RuntimeException(ex);
+      }
+   }
+
+   private AcquisitionEvent toEvent(JSONObject json) {
+      if (json.length() == 0) {
+         return null; //Acq event has been deleted
+      }
+      return AcquisitionEvent.fromJSON(json, acq_);
+   }
+
+   /**
+    * Push a message and note that its reply comes after those of everything
+    * sent before it. The event source and engine threads both send
+    */
+   private void send(Pending pending, Object content) {
+      synchronized (pending_) {
+         JSONObject message;
+         if (content instanceof JSONArray) {
+            message = new JSONObject();
+            try {
+               message.put("events", content);
+            } catch (JSONException ex) {
+               throw new RuntimeException(ex);
+            }
+         } else {
+            message = (JSONObject) content;
+         }
+         pending_.add(pending);
+         pushSocket_.push(message);
+      }
+   }
+
+   /**
+    * Read replies until the one to this message arrives. Only called by the
+    * engine thread, so replies are read by one thread in order
+    *
+    * @return an event's JSONObject or a batch's JSONArray
+    */
+   private Object awaitReply(Pending pending) {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs_);
+      while (pending.reply_ == null) {
+         JSONObject reply;
+         try {
+            if (timeoutMs_ < 0) {
+               reply = pullSocket_.next();
+            } else {
+               long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+               reply = pullSocket_.next((int) Math.max(1, remaining));
+            }
+         } catch (TimeoutException ex) {
+            //The message stays pending, so later replies still match up
+            throw new RuntimeException("No reply from acquisition hook within "
+                    + timeoutMs_ + " ms", ex);
+         }
+         Pending replied;
+         synchronized (pending_) {
+            replied = pending_.poll();
+         }
+         try {
+            //batches come back in the same form they went out
+            replied.reply_ = replied.isBatch_ ? reply.getJSONArray("events") : reply;
+         } catch (JSONException ex) {
+            throw new RuntimeException(ex);
+         }
+      }
+      return pending.reply_;
    }
 
    public int getPullPort() {
@@ -58,10 +267,46 @@ public class RemoteAcqHook implements AcquisitionHook {
       return pushSocket_.getPort();
    }
 
+   public String getPullAddress() {
+      return pullSocket_.getAddress();
+   }
+
+   public String getPushAddress() {
+      return pushSocket_.getAddress();
+   }
+
    @Override
    public void close() {
+      prefetched_.clear();
       pushSocket_.close();
       pullSocket_.close();
    }
 
+   /**
+    * A message sent to python and, once it has come, its reply
+    */
+   private static class Pending {
+
+      private final boolean isBatch_;
+      private volatile Object reply_;
+
+      Pending(boolean isBatch) {
+         isBatch_ = isBatch;
+      }
+   }
+
+   /**
+    * Where the answer for an event sent ahead will be
+    */
+   private static class Prefetched {
+
+      private final Pending batch_;
+      private final int index_;
+
+      Prefetched(Pending batch, int index) {
+         batch_ = batch;
+         index_ = index;
+      }
+   }
+
 }
@@ -40,9 +40,52 @@ public class RemoteAcquisition extends Acquisition
       return  ((RemoteViewerStorageAdapter) dataSink_).getStorage();
    }
    
+   RemoteEventSource getEventSource() {
+      return eventSource_;
+   }
+
+   /**
+    * Limit how many events python can send ahead of the ones being acquired.
+    * Must be called before sending events
+    *
+    * @param maxEvents
+    */
+   public void setEventPrefetch(int maxEvents) {
+      eventSource_.setPrefetch(maxEvents);
+   }
+
+   /**
+    * Write images on a thread of their own, holding up acquisition only once
+    * this much image data is waiting to be written. Must be called before
+    * the first image
+    *
+    * @param maxQueuedBytes
+    */
+   public void setStorageWriteBehind(long maxQueuedBytes) {
+      ((RemoteViewerStorageAdapter) dataSink_).setWriteBehind(maxQueuedBytes);
+   }
+
+   /**
+    * @param maxRateHz most times per second the viewer is told of new images
+    */
+   public void setViewerUpdateRate(double maxRateHz) {
+      ((RemoteViewerStorageAdapter) dataSink_).setViewerUpdateRate(maxRateHz);
+   }
+
+   /**
+    * @return counters of image writing, to see if storage is keeping up
+    */
+   public JSONObject getStorageStatistics() {
+      return ((RemoteViewerStorageAdapter) dataSink_).getWriteStatistics();
+   }
+
    public int getEventPort() {
       return eventSource_.getPort();
    }
+
+   public String getEventAddress() {
+      return eventSource_.getAddress();
+   }
    
    @Override
    public void abort() {
@@ -6,10 +6,13 @@
 package org.micromanager.remote;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.function.Function;
+import java.util.concurrent.Semaphore;
 import mmcorej.org.json.JSONArray;
 import mmcorej.org.json.JSONException;
 import mmcorej.org.json.JSONObject;
@@ -22,37 +25,61 @@ import org.micromanager.internal.zmq.ZMQPullSocket;
  */
 public class RemoteEventSource {
 
-   private ZMQPullSocket<List<AcquisitionEvent>> pullSocket_;
+   private static final int DEFAULT_PREFETCH = 10000;
+
+   private ZMQPullSocket<JSONObject> pullSocket_;
    private RemoteAcquisition acq_;
+   //Hooks that are sent events as soon as they arrive
+   private final List<RemoteAcqHook> lookaheadHooks_ = new CopyOnWriteArrayList<RemoteAcqHook>();
    private ExecutorService executor_ = Executors.newSingleThreadExecutor((Runnable r) -> {
       return new Thread(r, "Remote Event Source thread");
    });
+   //Events received but not yet taken by the acquisition. Once there are
+   //this many, no more are read from the socket, which holds up python
+   private volatile Semaphore prefetchWindow_ = new Semaphore(DEFAULT_PREFETCH);
+   private volatile int prefetchSize_ = DEFAULT_PREFETCH;
 
+   /**
+    * Python sends either lists of events as {"events": [...]}, or a compact
+    * description of them as {"event-spec": {...}} (see EventSpec) that is
+    * expanded into events as the acquisition runs them
+    */
    public RemoteEventSource() {
-      pullSocket_ = new ZMQPullSocket<List<AcquisitionEvent>>(
-              new Function<JSONObject, List<AcquisitionEvent>>() {
-         @Override
-         public List<AcquisitionEvent> apply(JSONObject t) {
-            try {
-               List<AcquisitionEvent> eventList = new ArrayList<AcquisitionEvent>();
-               JSONArray events = t.getJSONArray("events");
-               for (int i = 0; i < events.length(); i++) {
-                  JSONObject e = events.getJSONObject(i);
-                  eventList.add(AcquisitionEvent.fromJSON(e, acq_));
-               }
-               return eventList;
-            } catch (JSONException ex) {
-               throw new RuntimeException("Incorrect format for acquisitio event");
-            }
-         }
-      });
+      pullSocket_ = new ZMQPullSocket<JSONObject>((JSONObject t) -> t);
       //constantly poll the socket for more event sequences to submit
       executor_.submit(() -> {
          while (true) {
             try {
-               List<AcquisitionEvent> eList = pullSocket_.next();
-               boolean finished = eList.get(eList.size() - 1).isAcquisitionFinishedEvent();
-               acq_.submitEventIterator(eList.iterator());
+               JSONObject message = pullSocket_.next();
+               boolean finished;
+               if (message.has("event-spec")) {
+                  EventSpec spec = new EventSpec(message.getJSONObject("event-spec"), acq_);
+                  finished = spec.isFinished();
+                  acq_.submitEventIterator(spec);
+               } else if (!lookaheadHooks_.isEmpty()) {
+                  //Hooks need all the events up front
+                  List<AcquisitionEvent> eList = parseEvents(message);
+                  if (eList.isEmpty()) {
+                     continue; //nothing to submit
+                  }
+                  finished = eList.get(eList.size() - 1).isAcquisitionFinishedEvent();
+                  for (RemoteAcqHook hook : lookaheadHooks_) {
+                     hook.prefetch(eList);
+                  }
+                  acq_.submitEventIterator(eList.iterator());
+               } else {
+                  JSONArray events = message.getJSONArray("events");
+                  if (events.length() == 0) {
+                     continue; //nothing to submit
+                  }
+                  Semaphore window = prefetchWindow_;
+                  //a batch bigger than the window only has to wait for it to empty
+                  int permits = Math.min(events.length(), prefetchSize_);
+                  window.acquire(permits);
+                  LazyEvents lazy = new LazyEvents(events, window, permits);
+                  finished = lazy.isFinished();
+                  acq_.submitEventIterator(lazy);
+               }
                if (finished || executor_.isShutdown()) {
                   executor_.shutdown();
                   pullSocket_.close();
@@ -70,14 +97,52 @@ public class RemoteEventSource {
       });
    }
 
+   private List<AcquisitionEvent> parseEvents(JSONObject message) {
+      try {
+         List<AcquisitionEvent> eventList = new ArrayList<AcquisitionEvent>();
+         JSONArray events = message.getJSONArray("events");
+         for (int i = 0; i < events.length(); i++) {
+            JSONObject e = events.getJSONObject(i);
+            eventList.add(AcquisitionEvent.fromJSON(e, acq_));
+         }
+         return eventList;
+      } catch (JSONException ex) {
+         throw new RuntimeException("Incorrect format for acquisitio event");
+      }
+   }
+
+   /**
+    * Limit how many events python can send ahead of the acquisition. Must be
+    * called before python sends events
+    *
+    * @param maxEvents
+    */
+   void setPrefetch(int maxEvents) {
+      prefetchWindow_ = new Semaphore(maxEvents);
+      prefetchSize_ = maxEvents;
+   }
+
    void setAcquisition(RemoteAcquisition aThis) {
       acq_ = aThis;
    }
 
+   /**
+    * Send events to a hook ahead of time, before they are submitted
+    *
+    * @param hook
+    */
+   void addLookaheadHook(RemoteAcqHook hook) {
+      lookaheadHooks_.add(hook);
+   }
+
    public int getPort() {
       return pullSocket_.getPort();
    }
 
+   public String getAddress() {
+      return pullSocket_.getAddress();
+   }
+
    /**
     * This method needed so the source can be shutdown from x out on the viewer, 
     * This method needed so the source can be shutdown from x out on the viewer,
@@ -88,4 +153,56 @@ public class RemoteEventSource {
       pullSocket_.close();
    }
 
+   /**
+    * Events of one batch, turned from JSON into AcquisitionEvents as the
+    * acquisition takes them. Each one taken frees up room in the prefetch
+    * window for more to be received
+    */
+   private class LazyEvents implements Iterator<AcquisitionEvent> {
+
+      private final JSONArray events_;
+      private final Semaphore window_;
+      private int permits_;
+      private int next_ = 0;
+      //decoded up front to see if it ends the acquisition, null if empty
+      private final AcquisitionEvent last_;
+
+      LazyEvents(JSONArray events, Semaphore window, int permits) throws JSONException {
+         events_ = events;
+         window_ = window;
+         permits_ = permits;
+         last_ = events.length() == 0 ? null
+                 : AcquisitionEvent.fromJSON(events.getJSONObject(events.length() - 1), acq_);
+      }
+
+      boolean isFinished() {
+         return last_ != null && last_.isAcquisitionFinishedEvent();
+      }
+
+      @Override
+      public boolean hasNext() {
+         return next_ < events_.length();
+      }
+
+      @Override
+      public AcquisitionEvent next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+         if (permits_ > 0) {
+            permits_--;
+            window_.release();
+         }
+         try {
+            int index = next_++;
+            if (index == events_.length() - 1) {
+               return last_;
+            }
+            return AcquisitionEvent.fromJSON(events_.getJSONObject(index), acq_);
+         } catch (JSONException ex) {
+            throw new RuntimeException("Incorrect format for acquisitio event");
+         }
+      }
+   }
+
 }
@@ -5,16 +5,29 @@
  */
 package org.micromanager.remote;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
-import java.util.function.Function;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
 import mmcorej.TaggedImage;
 import mmcorej.org.json.JSONException;
 import mmcorej.org.json.JSONObject;
 import org.micromanager.acqj.api.AcqEngMetadata;
 import org.micromanager.acqj.api.TaggedImageProcessor;
+import org.micromanager.internal.zmq.ArrayCodec;
+import org.micromanager.internal.zmq.ArrayCodecs;
+import org.micromanager.internal.zmq.BufferPool;
+import org.micromanager.internal.zmq.MetadataDelta;
 import org.micromanager.internal.zmq.ZMQPullSocket;
+import org.micromanager.internal.zmq.SharedMemoryRing;
 import org.micromanager.internal.zmq.ZMQPushSocket;
 import org.micromanager.internal.zmq.ZMQUtil;
 
@@ -29,40 +42,107 @@ public class RemoteImageProcessor implements TaggedImageProcessor {
    volatile LinkedBlockingDeque<TaggedImage> source_, sink_;
 
    ZMQPushSocket<TaggedImage> pushSocket_;
-   ZMQPullSocket<TaggedImage> pullSocket_;
+   ZMQPullSocket<PulledImage> pullSocket_;
+
+   //Optional shared memory for pixels going out to and coming back from python
+   private volatile SharedMemoryRing pushRing_, pullRing_;
+
+   //Images python is willing to accept before acknowledging earlier ones,
+   //or null for no limit
+   private volatile Semaphore credits_;
+   private final CountDownLatch dequeuesSet_ = new CountDownLatch(1);
+
+   //Metadata of pushed images sent as changes from a periodic keyframe, if set
+   private volatile MetadataDelta.Encoder metadataEncoder_;
+   private final MetadataDelta.Decoders metadataDecoders_ = new MetadataDelta.Decoders();
+
+   //Distribution of images among several python workers
+   private volatile boolean fanOut_ = false;
+   private volatile boolean ordered_ = true;
+   //the first worker plus those added with connectWorker
+   private final AtomicInteger numWorkers_ = new AtomicInteger(1);
+   //only used by the push thread
+   private long nextPushSequence_ = 0;
+   private final Object reassemblyLock_ = new Object();
+   //guarded by reassemblyLock_
+   private final HashMap<Long, List<TaggedImage>> pendingResults_ = new HashMap<Long, List<TaggedImage>>();
+   private final HashSet<Long> completedSequences_ = new HashSet<Long>();
+   private long nextDeliverySequence_ = 0;
+   private long numCompleted_ = 0;
+   private long finishedAfter_ = -1;
+   private boolean finishedDelivered_ = false;
 
    public RemoteImageProcessor() {
       pushSocket_ = new ZMQPushSocket<TaggedImage>(
-              new Function<TaggedImage, JSONObject>() {
+              new BiFunction<TaggedImage, List<byte[]>, JSONObject>() {
          @Override
-         public JSONObject apply(TaggedImage t) {
+         public JSONObject apply(TaggedImage t, List<byte[]> binaryFrames) {
             try {
                JSONObject json = new JSONObject();
                if (t.tags == null && t.pix == null) {
                   json.put("special", "finished");
                } else {
-                  json.put("metadata", t.tags);
-                  json.put("pixels", ZMQUtil.toJSON(t.pix));
+                  json.put("sequence", nextPushSequence_++);
+                  MetadataDelta.Encoder encoder = metadataEncoder_;
+                  //Each worker only sees some of the images, so can't follow deltas
+                  if (encoder != null && !fanOut_) {
+                     encoder.encode(t.tags, json);
+                  } else {
+                     json.put("metadata", t.tags);
+                  }
+                  JSONObject pixels = null;
+                  if (pushRing_ != null) {
+                     //Waits for python to free a slot
+                     pixels = pushRing_.put(t.pix, -1);
+                  }
+                  json.put("pixels", pixels != null ? pixels : ZMQUtil.toJSON(t.pix, binaryFrames));
                }
                return json;
-            } catch (JSONException ex) {
+            } catch (JSONException | InterruptedException ex) {
                throw new RuntimeException(ex);
             }
          }
       });
 
-      pullSocket_ = new ZMQPullSocket<TaggedImage>(
-              new Function<JSONObject, TaggedImage>() {
+      pullSocket_ = new ZMQPullSocket<PulledImage>(
+              new BiFunction<JSONObject, List<byte[]>, PulledImage>() {
          @Override
-         public TaggedImage apply(JSONObject t) {
+         public PulledImage apply(JSONObject t, List<byte[]> binaryFrames) {
             try {
+               if (t.has("credits")) {
+                  grantCredits(t.getInt("credits"));
+               }
+               long sequence = t.optLong("sequence", -1);
+               //a worker may send several images for one sequence number
+               boolean last = !t.optBoolean("more", false);
                if (t.has("special") && t.getString("special").equals("finished")) {
-                  return new TaggedImage(null, null);
+                  return new PulledImage(new TaggedImage(null, null), sequence, last);
+               } else if (t.has("special") && t.getString("special").equals("credits")) {
+                  return new PulledImage(null, -1, false); //Only an acknowledgement, no image
+               } else if (t.has("special") && t.getString("special").equals("skip")) {
+                  return new PulledImage(null, sequence, last); //image was dropped
                } else {
-                  JSONObject tags = t.getJSONObject("metadata");
-                  Object pix = ZMQUtil.decodeArray(t.getString("pixels"),
+                  //Each sender (i.e. worker) may delta encode its own metadata
+                  JSONObject tags = MetadataDelta.Decoder.isEncoded(t)
+                          ? metadataDecoders_.decode(t.optString("sender", ""), t)
+                          : t.getJSONObject("metadata");
+                  Object pix;
+                  if (t.get("pixels") instanceof JSONObject
+                          && t.getJSONObject("pixels").has("shm-slot")) {
+                     SharedMemoryRing pullRing = pullRing_;
+                     if (pullRing == null) {
+                        throw new RuntimeException("Pixels sent through shared memory, "
+                                + "but it hasn't been enabled with enableSharedMemory");
+                     }
+                     pix = pullRing.get(t.getJSONObject("pixels"));
+                  } else if (t.get("pixels") instanceof JSONObject) {
+                     //array header, possibly pointing to a binary frame
+                     pix = ZMQUtil.decodeArray(t.getJSONObject("pixels"), binaryFrames);
+                  } else {
+                     pix = ZMQUtil.decodeArray(t.getString("pixels"),
                           AcqEngMetadata.getBytesPerPixel(tags) == 1 ? byte[].class : short[].class);
-                  return new TaggedImage(pix, tags);
+                  }
+                  return new PulledImage(new TaggedImage(pix, tags), sequence, last);
                }
             } catch (JSONException ex) {
                throw new RuntimeException(ex);
@@ -83,22 +163,207 @@ public class RemoteImageProcessor implements TaggedImageProcessor {
       return pushSocket_.getPort();
    }
 
+   public String getPullAddress() {
+      return pullSocket_.getAddress();
+   }
+
+   public String getPushAddress() {
+      return pushSocket_.getAddress();
+   }
+
+   /**
+    * Send pixels to the python side as raw binary frames after the metadata,
+    * rather than as Base64 strings. Must be called before startPush
+    *
+    * @param binaryArrays
+    */
+   public void setBinaryArrays(boolean binaryArrays) {
+      pushSocket_.setBinaryArrays(binaryArrays);
+   }
+
+   /**
+    * Pass pixels through memory mapped ring buffers rather than the sockets,
+    * for when python runs on the same host. Only metadata and the slot index
+    * go over the sockets. Python frees a slot of the push ring once it has
+    * read it, and fills slots of the pull ring with the images it sends back.
+    * Must be called before startPush
+    *
+    * @param numSlots images that can be in flight in each direction
+    * @param slotSize largest image in bytes. Bigger ones use the sockets
+    * @return descriptions of the "push" and "pull" rings for python to map
+    * @throws IOException
+    */
+   public JSONObject enableSharedMemory(int numSlots, long slotSize) throws IOException {
+      pushRing_ = new SharedMemoryRing(numSlots, slotSize);
+      pullRing_ = new SharedMemoryRing(numSlots, slotSize);
+      try {
+         JSONObject json = new JSONObject();
+         json.put("push", pushRing_.getDescriptor());
+         json.put("pull", pullRing_.getDescriptor());
+         return json;
+      } catch (JSONException ex) {
+         throw new RuntimeException(ex);
+      }
+   }
+
+   /**
+    * @return comma separated names of the codecs that can compress pixels
+    */
+   public String getCodecs() {
+      return String.join(",", ArrayCodecs.getNameSet());
+   }
+
+   /**
+    * Compress pixels sent to python with a codec it also supports. Encoding
+    * happens on its own threads, so taking images from the source isn't held
+    * up by it. Pixels python sends back may be compressed with any codec from
+    * getCodecs. Implies binary arrays. Can only be called once, before
+    * startPush
+    *
+    * @param codecName one of the names from getCodecs
+    * @param numThreads threads compressing images in parallel
+    * @return false if there is no codec with this name
+    * @throws IllegalStateException if a codec was already set
+    */
+   public boolean setCodec(String codecName, int numThreads) {
+      ArrayCodec codec = ArrayCodecs.get(codecName);
+      if (codec == null) {
+         return false;
+      }
+      pushSocket_.setCodec(codec, numThreads);
+      return true;
+   }
+
+   /**
+    * Pixel arrays decoded from python come from a pool and should be released
+    * back to it (e.g. by the storage once written) to avoid allocating new
+    * ones for every image
+    *
+    * @return counters of the pool along with those of the garbage collector
+    */
+   public JSONObject getBufferStatistics() {
+      return BufferPool.getDefault().getStatistics();
+   }
+
+   /**
+    * Send only the metadata keys that changed since the last full copy (a
+    * keyframe) with each image, rather than all of it. Metadata python sends
+    * back is decoded the same way if it has "metadata-keyframe" in it. Not
+    * used in fan out mode, since each worker only sees some of the images.
+    * Must be called before startPush
+    *
+    * @param keyframeInterval send the full metadata every this many images,
+    * 0 to always send it
+    */
+   public void setMetadataDeltas(int keyframeInterval) {
+      metadataEncoder_ = keyframeInterval > 0 ? new MetadataDelta.Encoder(keyframeInterval) : null;
+   }
+
+   /**
+    * Limit the number of images sent to python that it hasn't acknowledged
+    * yet. Python acknowledges images by sending back "credits": n with an
+    * image, by sending {"special": "credits", "credits": n}, or by calling
+    * grantCredits. Images then wait in the source deque rather than piling up
+    * in socket buffers when python is slower than the camera. Must be called
+    * before startPush
+    *
+    * @param maxInFlight number of unacknowledged images, 0 for no limit
+    */
+   public void setWindow(int maxInFlight) {
+      credits_ = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+   }
+
+   /**
+    * Allow more images to be sent to python
+    *
+    * @param credits number of images python has finished with
+    */
+   public void grantCredits(int credits) {
+      Semaphore window = credits_;
+      if (window != null) {
+         window.release(credits);
+      }
+   }
+
+   /**
+    * Distribute images among several python worker processes instead of
+    * sending them all to one. All workers pull from the push port, and the
+    * ones other than the first bind their own port, passed to connectWorker.
+    * Workers send each result back with the "sequence" number of the image
+    * it came from (with "more": true on all but the last if there are
+    * several, or {"special": "skip"} if there are none). In fan out mode
+    * results return their credit automatically. Each worker is sent one
+    * finished signal and must close its pull socket on receiving it, so that
+    * the next one goes to a worker that hasn't had one yet. Finished signals
+    * sent back by workers are ignored, and the finished signal is put on the
+    * sink once all results are in. Must be called before startPush.
+    *
+    * Only the Java side of this protocol exists so far: the image processor
+    * of pycromanager runs a single worker, which doesn't send sequence
+    * numbers back
+    *
+    * @param ordered put results on the sink in the order the images were
+    * acquired, rather than as soon as they arrive
+    */
+   public void setFanOut(boolean ordered) {
+      fanOut_ = true;
+      ordered_ = ordered;
+      //only queue one image per worker, so the next image goes to whichever
+      //worker is ready for it
+      pushSocket_.setSendHWM(1);
+   }
+
+   /**
+    * Receive results from another worker, which has bound a push socket on
+    * this port. Must be called before startPull
+    *
+    * @param port
+    */
+   public void connectWorker(int port) {
+      pullSocket_.connect(port);
+      numWorkers_.incrementAndGet();
+   }
+
    public void startPush() {
       pushExecutor_.submit(() -> {
-         //take from source and push as fast as possible
+         try {
+            dequeuesSet_.await();
+         } catch (InterruptedException ex) {
+            return;
+         }
+         //take from source and push as fast as python allows
          while (true) {
-            if (source_ != null) {
-               try {
-                  TaggedImage img = source_.takeFirst();
-                  pushSocket_.push(img);
-               } catch (InterruptedException ex) {
-                  return;
-               } catch (Exception e) {
-                  if (pullExecutor_.isShutdown()) {
-                     return;
+            try {
+               TaggedImage img = source_.takeFirst();
+               if (fanOut_ && img.tags == null && img.pix == null) {
+                  synchronized (reassemblyLock_) {
+                     finishedAfter_ = nextPushSequence_;
+                     deliverFinishedIfDone();
+                  }
+                  //so that every worker shuts down
+                  for (int i = numWorkers_.get(); i > 0; i--) {
+                     pushSocket_.push(img);
                   }
-                  e.printStackTrace();
+                  continue;
+               }
+               Semaphore window = credits_;
+               //The finished signal doesn't need a credit
+               if (window != null && (img.tags != null || img.pix != null)) {
+                  window.acquire();
+               }
+               pushSocket_.push(img);
+               //The pixels have been copied into the message, unless they're
+               //bytes sent as their own frame, so can be reused for decoding
+               if (!(img.pix instanceof byte[] && pushSocket_.isBinaryArrays())) {
+                  BufferPool.getDefault().release(img.pix);
                }
+            } catch (InterruptedException ex) {
+               return;
+            } catch (Exception e) {
+               if (pullExecutor_.isShutdown()) {
+                  return;
+               }
+               e.printStackTrace();
             }
          }
       });
@@ -106,28 +371,95 @@ public class RemoteImageProcessor implements TaggedImageProcessor {
 
    public void startPull() {
       pullExecutor_.submit(() -> {
+         try {
+            dequeuesSet_.await();
+         } catch (InterruptedException ex) {
+            return;
+         }
          while (true) {
-            if (sink_ != null) {
-               try {
-                  TaggedImage ti = pullSocket_.next();
-                  sink_.putLast(ti);
-               } catch (InterruptedException ex) {
+            try {
+               PulledImage result = pullSocket_.next();
+               if (fanOut_ && result.image_ != null
+                       && result.image_.tags == null && result.image_.pix == null) {
+                  //a worker passing on its finished signal. The sink gets one
+                  //once all results are in
+                  continue;
+               }
+               if (fanOut_ && result.sequence_ >= 0) {
+                  deliverResult(result);
+               } else if (result.image_ != null) {
+                  //blocks if the sink is bounded and full
+                  sink_.putLast(result.image_);
+               }
+            } catch (InterruptedException ex) {
+               return;
+            } catch (Exception e) {
+               if (pullExecutor_.isShutdown()) {
                   return;
-               } catch (Exception e) {
-                  if (pullExecutor_.isShutdown()) {
-                     return;
-                  }
-                  e.printStackTrace();
                }
+               e.printStackTrace();
             }
          }
       });
    }
 
+   /**
+    * Put a result from one of several workers on the sink, in order if
+    * required
+    */
+   private void deliverResult(PulledImage result) throws InterruptedException {
+      if (result.last_) {
+         grantCredits(1);
+      }
+      synchronized (reassemblyLock_) {
+         if (!ordered_) {
+            if (result.image_ != null) {
+               sink_.putLast(result.image_);
+            }
+            if (result.last_) {
+               numCompleted_++;
+            }
+         } else {
+            if (result.image_ != null) {
+               pendingResults_.computeIfAbsent(result.sequence_,
+                       (Long k) -> new ArrayList<TaggedImage>()).add(result.image_);
+            }
+            if (result.last_) {
+               completedSequences_.add(result.sequence_);
+            }
+            //Everything up to the first sequence that isn't complete can go
+            while (completedSequences_.remove(nextDeliverySequence_)) {
+               List<TaggedImage> images = pendingResults_.remove(nextDeliverySequence_);
+               if (images != null) {
+                  for (TaggedImage image : images) {
+                     sink_.putLast(image);
+                  }
+               }
+               nextDeliverySequence_++;
+               numCompleted_++;
+            }
+         }
+         deliverFinishedIfDone();
+      }
+   }
+
+   /**
+    * Once the source has finished and every image sent out has come back,
+    * signal the sink that processing is finished. Called with
+    * reassemblyLock_ held
+    */
+   private void deliverFinishedIfDone() throws InterruptedException {
+      if (finishedAfter_ >= 0 && !finishedDelivered_ && numCompleted_ >= finishedAfter_) {
+         finishedDelivered_ = true;
+         sink_.putLast(new TaggedImage(null, null));
+      }
+   }
+
    @Override
    public void setDequeues(LinkedBlockingDeque<TaggedImage> source, LinkedBlockingDeque<TaggedImage> sink) {
       source_ = source;
       sink_ = sink;
+      dequeuesSet_.countDown();
    }
 
    @Override
@@ -136,6 +468,27 @@ public class RemoteImageProcessor implements TaggedImageProcessor {
       pushExecutor_.shutdownNow();
       pushSocket_.close();
       pullSocket_.close();
+      if (pushRing_ != null) {
+         pushRing_.close();
+         pullRing_.close();
+      }
+   }
+
+   /**
+    * A message from python, with the sequence number of the image it is the
+    * result of (-1 if not given)
+    */
+   private static class PulledImage {
+
+      private final TaggedImage image_;
+      private final long sequence_;
+      private final boolean last_;
+
+      PulledImage(TaggedImage image, long sequence, boolean last) {
+         image_ = image;
+         sequence_ = sequence;
+         last_ = last;
+      }
    }
 
 }
@@ -0,0 +1,141 @@
+package org.micromanager.remote;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.acqj.api.AcquisitionEvent;
+import org.micromanager.acqj.api.AcquisitionHook;
+import org.micromanager.internal.zmq.ZMQPushSocket;
+
+/**
+ * Hook that lets python watch events go by without being able to change
+ * them. Events are serialized as they go by, so python sees them as they were
+ * when the hook ran, then queued and sent from another thread, so the engine
+ * never waits for python. Python pulls event
+ * JSON from the push port, and a {"special": "finished"} message once the
+ * hook is closed
+ */
+public class RemoteObserverHook implements AcquisitionHook {
+
+   private static final int CLOSE_TIMEOUT_S = 5;
+   //Marks the end of the events in the queue
+   private static final Object FINISHED = new Object();
+
+   ZMQPushSocket<JSONObject> pushSocket_;
+   //event JSON, then FINISHED
+   private final LinkedBlockingQueue<Object> queue_;
+   private final boolean dropWhenFull_;
+   private final AtomicLong numDropped_ = new AtomicLong();
+   private volatile EventFilter filter_;
+   private final ExecutorService sendExecutor_ = Executors.newSingleThreadExecutor(
+           (Runnable r) -> new Thread(r, "Remote observer hook thread"));
+
+   /**
+    * @param capacity most events that can wait to be sent
+    * @param dropWhenFull if python falls this far behind, drop events rather
+    * than making the engine wait
+    */
+   public RemoteObserverHook(int capacity, boolean dropWhenFull) {
+      queue_ = new LinkedBlockingQueue<Object>(capacity);
+      dropWhenFull_ = dropWhenFull;
+      pushSocket_ = new ZMQPushSocket<JSONObject>((JSONObject t) -> t);
+      sendExecutor_.submit(() -> {
+         while (true) {
+            try {
+               Object event = queue_.take();
+               if (event == FINISHED) {
+                  JSONObject json = new JSONObject();
+                  json.put("special", "finished");
+                  pushSocket_.push(json);
+                  return;
+               }
+               pushSocket_.push((JSONObject) event);
+            } catch (InterruptedException ex) {
+               return;
+            } catch (Exception e) {
+               if (sendExecutor_.isShutdown()) {
+                  return;
+               }
+               e.printStackTrace();
+            }
+         }
+      });
+   }
+
+   @Override
+   public AcquisitionEvent run(AcquisitionEvent event) {
+      //The engine and later hooks may change the event once this returns
+      JSONObject json = event.toJSON();
+      EventFilter filter = filter_;
+      try {
+         if (filter != null && !filter.matches(json)) {
+            return event;
+         }
+      } catch (JSONException ex) {
+         throw new RuntimeException(ex);
+      }
+      if (dropWhenFull_) {
+         if (!queue_.offer(json)) {
+            numDropped_.incrementAndGet();
+         }
+      } else {
+         try {
+            queue_.put(json);
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      return event;
+   }
+
+   /**
+    * Only send python the events it's interested in. See EventFilter for the
+    * format. Must be called before the first event
+    *
+    * @param filterJSON
+    * @throws JSONException if the filter isn't valid JSON
+    */
+   public void setFilter(String filterJSON) throws JSONException {
+      filter_ = filterJSON == null ? null : new EventFilter(new JSONObject(filterJSON));
+   }
+
+   /**
+    * @return number of events python never saw because the queue was full.
+    * Events left out by the filter aren't counted
+    */
+   public long getNumDropped() {
+      return numDropped_.get();
+   }
+
+   public int getPushPort() {
+      return pushSocket_.getPort();
+   }
+
+   public String getPushAddress() {
+      return pushSocket_.getAddress();
+   }
+
+   /**
+    * Send whatever is still queued, then the finished signal, waiting a few
+    * seconds at most for python to take them
+    */
+   @Override
+   public void close() {
+      try {
+         boolean queued = queue_.offer(FINISHED, CLOSE_TIMEOUT_S, TimeUnit.SECONDS);
+         sendExecutor_.shutdown();
+         if (!queued || !sendExecutor_.awaitTermination(CLOSE_TIMEOUT_S, TimeUnit.SECONDS)) {
+            sendExecutor_.shutdownNow();
+         }
+      } catch (InterruptedException ex) {
+         sendExecutor_.shutdownNow();
+         Thread.currentThread().interrupt();
+      }
+      pushSocket_.close();
+   }
+
+}
@@ -5,10 +5,14 @@
  */
 package org.micromanager.remote;
 
+import java.lang.reflect.Array;
 import java.util.HashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import mmcorej.TaggedImage;
+import mmcorej.org.json.JSONException;
 import mmcorej.org.json.JSONObject;
 import org.micromanager.acqj.api.AcqEngMetadata;
 import org.micromanager.acqj.api.DataSink;
@@ -26,7 +30,27 @@ import org.micromanager.ndviewer.api.ViewerAcquisitionInterface;
  */
 public class RemoteViewerStorageAdapter implements DataSourceInterface, DataSink {
 
-   private ExecutorService displayCommunicationExecutor_;
+   private static final double DEFAULT_VIEWER_UPDATE_RATE_HZ = 30;
+   //Storage downsamples tiles after writing them, so zoomed out views are
+   //redrawn once images have stopped arriving for this long
+   private static final long LOW_RES_REFRESH_DELAY_MS = 500;
+
+   private volatile ViewerNotifier viewerNotifier_;
+   private volatile double viewerUpdateRateHz_ = DEFAULT_VIEWER_UPDATE_RATE_HZ;
+
+   //Write behind: images are queued for a thread of their own to write
+   private volatile ExecutorService writeExecutor_;
+   private volatile long maxQueuedBytes_ = 0;
+   private final Object queueLock_ = new Object();
+   //guarded by queueLock_
+   private long queuedBytes_ = 0;
+   private int numQueued_ = 0;
+   private long maxBacklogBytes_ = 0;
+   private volatile Exception writeError_;
+   private final AtomicLong numStalls_ = new AtomicLong();
+   private final AtomicLong stallTimeNs_ = new AtomicLong();
+   private final AtomicLong numWritten_ = new AtomicLong();
+   private final AtomicLong writeTimeNs_ = new AtomicLong();
 
    private volatile ViewerInterface viewer_;
    private volatile RemoteAcquisition acq_;
@@ -72,11 +96,10 @@ public class RemoteViewerStorageAdapter implements DataSourceInterface, DataSink
 
    private void createDisplay(JSONObject summaryMetadata) {
       //create display
-      displayCommunicationExecutor_ = Executors.newSingleThreadExecutor((Runnable r)
-              -> new Thread(r, "Image viewer communication thread"));
-
       viewer_ = new NDViewer(this, (ViewerAcquisitionInterface) acq_,
               summaryMetadata, AcqEngMetadata.getPixelSizeUm(summaryMetadata));
+      viewerNotifier_ = new ViewerNotifier(viewer_, viewerUpdateRateHz_,
+              xyTiled_ ? LOW_RES_REFRESH_DELAY_MS : 0);
 
       viewer_.setWindowTitle(name_ + (acq_ != null
               ? (acq_.isFinished()? " (Finished)" : " (Running)") : " (Loaded)"));
@@ -85,8 +108,118 @@ public class RemoteViewerStorageAdapter implements DataSourceInterface, DataSink
       viewer_.setReadZMetadataFunction((JSONObject tags) -> AcqEngMetadata.getZPositionUm(tags));
    }
 
+   /**
+    * Write images to storage on a thread of their own rather than the one
+    * that hands them over, so a slow disk only holds up acquisition once
+    * this much image data is waiting to be written. Must be called before
+    * the first image
+    *
+    * @param maxQueuedBytes 0 to write images as they arrive
+    */
+   public void setWriteBehind(long maxQueuedBytes) {
+      maxQueuedBytes_ = maxQueuedBytes;
+      if (maxQueuedBytes > 0 && writeExecutor_ == null) {
+         writeExecutor_ = Executors.newSingleThreadExecutor((Runnable r)
+                 -> new Thread(r, "Remote storage writing thread"));
+      }
+   }
+
+   /**
+    * Tell the viewer about new images at most this often. Images that arrive
+    * in between are coalesced, keeping only the latest of each channel and
+    * those that extend the range of an axis
+    *
+    * @param maxRateHz
+    */
+   public void setViewerUpdateRate(double maxRateHz) {
+      viewerUpdateRateHz_ = maxRateHz;
+      ViewerNotifier notifier = viewerNotifier_;
+      if (notifier != null) {
+         notifier.setMaxRate(maxRateHz);
+      }
+   }
+
+   /**
+    * Counters to see whether storage keeps up with acquisition
+    *
+    * @return JSON with "images-written", "write-time-ms", "queued-images",
+    * "queued-bytes", "max-queued-bytes" (the highest backlog), "stalls"
+    * (images that waited for room in the queue) and "stall-time-ms"
+    */
+   public JSONObject getWriteStatistics() {
+      try {
+         JSONObject json = new JSONObject();
+         json.put("images-written", numWritten_.get());
+         json.put("write-time-ms", TimeUnit.NANOSECONDS.toMillis(writeTimeNs_.get()));
+         synchronized (queueLock_) {
+            json.put("queued-images", numQueued_);
+            json.put("queued-bytes", queuedBytes_);
+            json.put("max-queued-bytes", maxBacklogBytes_);
+         }
+         json.put("stalls", numStalls_.get());
+         json.put("stall-time-ms", TimeUnit.NANOSECONDS.toMillis(stallTimeNs_.get()));
+         return json;
+      } catch (JSONException ex) {
+         throw new RuntimeException(ex);
+      }
+   }
+
    public void putImage(final TaggedImage taggedImg) {
+      throwWriteError();
+      //parsed once, for both storage and the viewer
       HashMap<String, Integer> axes = AcqEngMetadata.getAxes(taggedImg.tags);
+      if (writeExecutor_ == null) {
+         writeImage(taggedImg, axes);
+         return;
+      }
+      long numBytes = sizeInBytes(taggedImg.pix);
+      reserveQueueSpace(numBytes);
+      writeExecutor_.submit(() -> {
+         try {
+            writeImage(taggedImg, axes);
+         } catch (Exception e) {
+            if (writeError_ == null) {
+               writeError_ = e;
+            }
+            e.printStackTrace();
+         } finally {
+            synchronized (queueLock_) {
+               numQueued_--;
+               queuedBytes_ -= numBytes;
+               queueLock_.notifyAll();
+            }
+         }
+      });
+   }
+
+   /**
+    * Wait until there is room for an image in the write queue. An image
+    * bigger than the whole queue only waits for it to empty
+    */
+   private void reserveQueueSpace(long numBytes) {
+      synchronized (queueLock_) {
+         if (queuedBytes_ > 0 && queuedBytes_ + numBytes > maxQueuedBytes_) {
+            numStalls_.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+               while (queuedBytes_ > 0 && queuedBytes_ + numBytes > maxQueuedBytes_) {
+                  queueLock_.wait();
+               }
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+               throw new RuntimeException(ex);
+            } finally {
+               stallTimeNs_.addAndGet(System.nanoTime() - start);
+            }
+         }
+         numQueued_++;
+         queuedBytes_ += numBytes;
+         maxBacklogBytes_ = Math.max(maxBacklogBytes_, queuedBytes_);
+      }
+   }
+
+   private void writeImage(TaggedImage taggedImg, HashMap<String, Integer> axes) {
+      long start = System.nanoTime();
       if (xyTiled_) {
          int row = AcqEngMetadata.getGridRow(taggedImg.tags);
          int col = AcqEngMetadata.getGridCol(taggedImg.tags);
@@ -94,20 +227,53 @@ public class RemoteViewerStorageAdapter implements DataSourceInterface, DataSink
       } else {
          storage_.putImage(taggedImg, axes);
       }
+      writeTimeNs_.addAndGet(System.nanoTime() - start);
+      numWritten_.incrementAndGet();
+      //The pixels aren't released to the BufferPool: storage may still be
+      //writing them, and keeps them to show the viewer until it has
 
       if (showViewer_) {
-         //put on different thread to not slow down acquisition
-         displayCommunicationExecutor_.submit(new Runnable() {
-            @Override
-            public void run() {
-               HashMap<String, Integer> axes = AcqEngMetadata.getAxes(taggedImg.tags);
-               if (xyTiled_) {
-                  //remove this so the viewer doesn't show it
-                  axes.remove(AcqEngMetadata.POSITION_AXIS);
-               }
-               viewer_.newImageArrived(axes, AcqEngMetadata.getChannelName(taggedImg.tags));
-            }
-         });
+         //The viewer reads images back from storage, so only tell it once written
+         String channel = AcqEngMetadata.getChannelName(taggedImg.tags);
+         HashMap<String, Integer> displayAxes = new HashMap<String, Integer>(axes);
+         if (xyTiled_) {
+            //remove this so the viewer doesn't show it
+            displayAxes.remove(AcqEngMetadata.POSITION_AXIS);
+         }
+         //delivered on a different thread to not slow down acquisition
+         viewerNotifier_.imageArrived(displayAxes, channel);
+      }
+   }
+
+   /**
+    * @return size of a pixel array. RGB pixels are 4 bytes of a byte array,
+    * so bytes per pixel times the array length would count them 4 times
+    */
+   private static long sizeInBytes(Object pix) {
+      if (pix == null) {
+         return 0;
+      }
+      Class c = pix.getClass().getComponentType();
+      int elementSize;
+      if (c == byte.class || c == boolean.class) {
+         elementSize = 1;
+      } else if (c == short.class || c == char.class) {
+         elementSize = 2;
+      } else if (c == int.class || c == float.class) {
+         elementSize = 4;
+      } else {
+         elementSize = 8;
+      }
+      return (long) Array.getLength(pix) * elementSize;
+   }
+
+   /**
+    * Rethrow a failure of the writing thread on the thread handing over
+    * images, so the acquisition finds out about it
+    */
+   private void throwWriteError() {
+      if (writeError_ != null) {
+         throw new RuntimeException("Writing image to storage failed", writeError_);
       }
    }
   
@@ -120,16 +286,16 @@ public class RemoteViewerStorageAdapter implements DataSourceInterface, DataSink
    @Override
    public TaggedImage getImageForDisplay(HashMap<String, Integer> axes, int resolutionindex,
            double xOffset, double yOffset, int imageWidth, int imageHeight) {
-
-       int resIndex = 0;
+      //Storage keeps downsampled copies of tiled data, so zoomed out views
+      //are read from the level that matches rather than from every tile
       return storage_.getStitchedImage(
-              axes, resIndex, (int) xOffset, (int) yOffset,
+              axes, resolutionindex, (int) xOffset, (int) yOffset,
               imageWidth, imageHeight);
    }
 
    @Override
    public int getMaxResolutionIndex() {
-      return 0; //No multi resolution support for now
+      return storage_.getNumResLevels() - 1;
    }
 
    @Override
@@ -144,6 +310,18 @@ public class RemoteViewerStorageAdapter implements DataSourceInterface, DataSink
    ///////////// Data sink interface required by acq eng /////////////
    @Override
    public void finished() {
+      if (writeExecutor_ != null) {
+         //Everything queued is written before storage is finished
+         writeExecutor_.shutdown();
+         try {
+            writeExecutor_.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+         }
+         //a failure writing one of the last images is only known now
+         throwWriteError();
+      }
       if (storage_ != null) {
          if (!storage_.isFinished()) {
             //Get most up to date display settings
@@ -157,7 +335,8 @@ public class RemoteViewerStorageAdapter implements DataSourceInterface, DataSink
       
       if (showViewer_) {
          viewer_.setWindowTitle(name_ + " (Finished)");
-         displayCommunicationExecutor_.shutdown();
+         //after storage has finished, so zoomed out views are complete
+         viewerNotifier_.close();
       }   
    }
 
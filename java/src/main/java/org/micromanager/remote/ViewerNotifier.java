@@ -0,0 +1,171 @@
+package org.micromanager.remote;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.micromanager.ndviewer.api.ViewerInterface;
+
+/**
+ * Tells the viewer about new images at most a few times a second, rather
+ * than once per image, which at high frame rates would queue up more work
+ * than the viewer can do and redraw far more often than the screen shows.
+ *
+ * Between deliveries, notifications are coalesced: only the latest image of
+ * each channel is kept, along with any that show the viewer something it
+ * hasn't seen (a new channel, or a value beyond the range of an axis so far)
+ * so its scrollbars still cover all the data. So at most a few per axis and
+ * channel are waiting at any time, however fast images arrive.
+ *
+ * Tiled data is also shown zoomed out from downsampled copies that storage
+ * builds after writing each tile, so the viewer can be told about the latest
+ * images again once they have stopped arriving for a while, and again when
+ * closed, to redraw with those copies in place
+ */
+class ViewerNotifier {
+
+   private final ViewerInterface viewer_;
+   private final ExecutorService executor_ = Executors.newSingleThreadExecutor((Runnable r)
+           -> new Thread(r, "Image viewer communication thread"));
+   private volatile double maxRateHz_;
+   private final long refreshDelayMs_;
+
+   //guarded by this. Waiting notifications by reason, in the order they came
+   private final LinkedHashMap<String, Notification> pending_ = new LinkedHashMap<String, Notification>();
+   //range of each axis and channels the viewer has been (or will be) told of
+   private final HashMap<String, int[]> axisRanges_ = new HashMap<String, int[]>();
+   private final HashSet<String> channels_ = new HashSet<String>();
+   //latest image of each channel, to tell the viewer about again
+   private final LinkedHashMap<String, Notification> latest_ = new LinkedHashMap<String, Notification>();
+   private long lastArrivalMs_;
+   private boolean refreshDue_ = false;
+   private boolean closed_ = false;
+
+   /**
+    * @param viewer
+    * @param maxRateHz most deliveries to the viewer per second
+    * @param refreshDelayMs if more than 0, tell the viewer about the latest
+    * images again once none have arrived for this long, and on closing
+    */
+   ViewerNotifier(ViewerInterface viewer, double maxRateHz, long refreshDelayMs) {
+      viewer_ = viewer;
+      maxRateHz_ = maxRateHz;
+      refreshDelayMs_ = refreshDelayMs;
+      executor_.submit(() -> {
+         try {
+            while (deliver()) {
+            }
+         } catch (InterruptedException ex) {
+            //Shutting down
+         }
+      });
+   }
+
+   void setMaxRate(double maxRateHz) {
+      maxRateHz_ = maxRateHz;
+   }
+
+   /**
+    * @param axes axes of an image that is now in storage
+    * @param channel
+    */
+   synchronized void imageArrived(HashMap<String, Integer> axes, String channel) {
+      Notification n = new Notification(axes, channel);
+      for (Map.Entry<String, Integer> axis : axes.entrySet()) {
+         int value = axis.getValue();
+         int[] range = axisRanges_.get(axis.getKey());
+         if (range == null) {
+            axisRanges_.put(axis.getKey(), new int[]{value, value});
+            pending_.put("min:" + axis.getKey(), n);
+            pending_.put("max:" + axis.getKey(), n);
+         } else if (value < range[0]) {
+            range[0] = value;
+            pending_.put("min:" + axis.getKey(), n);
+         } else if (value > range[1]) {
+            range[1] = value;
+            pending_.put("max:" + axis.getKey(), n);
+         }
+      }
+      if (channels_.add(String.valueOf(channel))) {
+         pending_.put("channel:" + channel, n);
+      }
+      //latest wins, and moves to the end
+      pending_.remove("latest:" + channel);
+      pending_.put("latest:" + channel, n);
+      if (refreshDelayMs_ > 0) {
+         latest_.put(String.valueOf(channel), n);
+         lastArrivalMs_ = System.currentTimeMillis();
+         refreshDue_ = true;
+      }
+   }
+
+   /**
+    * Deliver what's waiting, or the latest images again if refreshing, and
+    * stop
+    */
+   void close() {
+      synchronized (this) {
+         closed_ = true;
+         refreshDue_ = refreshDelayMs_ > 0 && !latest_.isEmpty();
+         notifyAll();
+      }
+      executor_.shutdown();
+   }
+
+   /**
+    * Wait until it's time, then pass waiting notifications to the viewer
+    *
+    * @return false once closed
+    */
+   private boolean deliver() throws InterruptedException {
+      List<Notification> toDeliver = new ArrayList<Notification>();
+      boolean closed;
+      synchronized (this) {
+         long periodMs = (long) (1000 / Math.max(maxRateHz_, 0.001));
+         long deadline = System.currentTimeMillis() + periodMs;
+         long remaining = periodMs;
+         while (!closed_ && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+         }
+         closed = closed_;
+         if (refreshDue_ && pending_.isEmpty() && (closed
+                 || System.currentTimeMillis() - lastArrivalMs_ >= refreshDelayMs_)) {
+            //nothing new since, but storage may have downsampled them
+            refreshDue_ = false;
+            for (Map.Entry<String, Notification> e : latest_.entrySet()) {
+               pending_.put("latest:" + e.getKey(), e.getValue());
+            }
+         }
+         //the same image may be waiting for several reasons
+         IdentityHashMap<Notification, Boolean> seen = new IdentityHashMap<Notification, Boolean>();
+         for (Notification n : pending_.values()) {
+            if (seen.put(n, Boolean.TRUE) == null) {
+               toDeliver.add(n);
+            }
+         }
+         pending_.clear();
+      }
+      for (Notification n : toDeliver) {
+         viewer_.newImageArrived(n.axes_, n.channel_);
+      }
+      return !closed;
+   }
+
+   private static class Notification {
+
+      private final HashMap<String, Integer> axes_;
+      private final String channel_;
+
+      Notification(HashMap<String, Integer> axes, String channel) {
+         axes_ = axes;
+         channel_ = channel;
+      }
+   }
+
+}
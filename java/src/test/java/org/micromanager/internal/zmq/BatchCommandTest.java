@@ -0,0 +1,170 @@
+package org.micromanager.internal.zmq;
+
+import java.util.ArrayList;
+import java.util.List;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONObject;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchCommandTest {
+
+   public static class Holder {
+
+      public static final short[] PIXELS = {1, 2, 3, 1000};
+      public short[] pixels;
+      public String name;
+
+      public short[] makePixels() {
+         return PIXELS.clone();
+      }
+
+      public int sum(short[] values) {
+         int sum = 0;
+         for (short v : values) {
+            sum += v;
+         }
+         return sum;
+      }
+
+      public Holder self() {
+         return this;
+      }
+   }
+
+   private ZMQServer server_;
+
+   @Before
+   public void setUp() throws Exception {
+      server_ = new ZMQServer(getClass().getClassLoader(), (Class c) -> null, new String[0]);
+   }
+
+   @After
+   public void tearDown() {
+      server_.close();
+   }
+
+   private static JSONObject reference(int index) throws Exception {
+      return new JSONObject().put("result-of", index);
+   }
+
+   private static JSONObject construct() throws Exception {
+      JSONObject command = new JSONObject();
+      command.put("command", "constructor");
+      command.put("classpath", Holder.class.getName());
+      command.put("arguments", new JSONArray());
+      command.put("argument-types", new JSONArray());
+      return command;
+   }
+
+   private static JSONObject runMethod(int target, String name, Object... arguments)
+           throws Exception {
+      JSONObject command = new JSONObject();
+      command.put("command", "run-method");
+      command.put("hash-code", reference(target));
+      command.put("handle", reference(target));
+      command.put("name", name);
+      JSONArray args = new JSONArray();
+      JSONArray types = new JSONArray();
+      for (int i = 0; i < arguments.length; i += 2) {
+         types.put(arguments[i]);
+         args.put(arguments[i + 1]);
+      }
+      command.put("arguments", args);
+      command.put("argument-types", types);
+      return command;
+   }
+
+   private static JSONObject setField(int target, String name, Object value) throws Exception {
+      JSONObject command = new JSONObject();
+      command.put("command", "set-field");
+      command.put("hash-code", reference(target));
+      command.put("handle", reference(target));
+      command.put("name", name);
+      command.put("value", value);
+      return command;
+   }
+
+   /**
+    * @return result of each command of the batch
+    */
+   private JSONArray runBatch(boolean binaryArrays, JSONObject... commands) throws Exception {
+      JSONObject batch = new JSONObject();
+      batch.put("command", "batch");
+      batch.put("class-references", true);
+      batch.put("binary-arrays", binaryArrays);
+      JSONArray list = new JSONArray();
+      for (JSONObject command : commands) {
+         list.put(command);
+      }
+      batch.put("commands", list);
+      List<byte[]> replyFrames = new ArrayList<byte[]>();
+      byte[] reply = server_.parseAndExecuteCommand(batch.toString(), new ArrayList<byte[]>(),
+              replyFrames);
+      return new JSONObject(new String(reply)).getJSONArray("value");
+   }
+
+   private static Holder holder(JSONObject result) throws Exception {
+      return (Holder) ZMQUtil.EXTERNAL_OBJECTS.get(result.getLong("handle"));
+   }
+
+   @Test
+   public void objectResultIsUsedAsReceiverAndArgument() throws Exception {
+      JSONArray results = runBatch(false, construct(),
+              runMethod(0, "self"),
+              setField(1, "name", "set through a result"));
+      assertEquals("none", results.getJSONObject(2).getString("type"));
+      Holder holder = holder(results.getJSONObject(0));
+      assertEquals("set through a result", holder.name);
+      assertEquals(holder, holder(results.getJSONObject(1)));
+   }
+
+   @Test
+   public void arrayResultIsPassedAsArgument() throws Exception {
+      for (boolean binary : new boolean[]{false, true}) {
+         JSONArray results = runBatch(binary, construct(),
+                 runMethod(0, "makePixels"),
+                 runMethod(0, "sum", "short[]", reference(1)));
+         assertEquals(1006, results.getJSONObject(2).getInt("value"));
+      }
+   }
+
+   @Test
+   public void arrayResultIsSetOnArrayField() throws Exception {
+      for (boolean binary : new boolean[]{false, true}) {
+         JSONArray results = runBatch(binary, construct(),
+                 runMethod(0, "makePixels"),
+                 setField(0, "pixels", reference(1)));
+         assertEquals("none", results.getJSONObject(2).getString("type"));
+         assertArrayEquals(Holder.PIXELS, holder(results.getJSONObject(0)).pixels);
+      }
+   }
+
+   @Test
+   public void sharedMemoryResultCantBeReferenced() throws Exception {
+      server_.enableSharedMemory(2, 1024);
+      JSONObject makePixels = runMethod(0, "makePixels");
+      makePixels.put("shared-memory", true);
+      JSONArray results = runBatch(false, construct(), makePixels,
+              setField(0, "pixels", reference(1)));
+      assertTrue(results.getJSONObject(1).has("shm-slot"));
+      assertEquals("exception", results.getJSONObject(2).getString("type"));
+      assertEquals(null, holder(results.getJSONObject(0)).pixels);
+   }
+
+   @Test
+   public void laterOrFailedResultsAreRejected() throws Exception {
+      JSONArray results = runBatch(false, construct(),
+              runMethod(2, "self"),
+              runMethod(0, "missing"),
+              runMethod(2, "self"));
+      assertEquals("exception", results.getJSONObject(1).getString("type"));
+      assertEquals("exception", results.getJSONObject(2).getString("type"));
+      assertEquals("exception", results.getJSONObject(3).getString("type"));
+   }
+
+}
@@ -0,0 +1,112 @@
+package org.micromanager.internal.zmq;
+
+import java.nio.ByteOrder;
+import mmcorej.org.json.JSONObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+   private static final int LENGTH = 64 * 1024;
+
+   @Test
+   public void takeGivesArrayOfExactClassAndLength() {
+      BufferPool pool = new BufferPool(Long.MAX_VALUE);
+      Object array = pool.take(short[].class, LENGTH);
+      assertSame(short[].class, array.getClass());
+      assertEquals(LENGTH, ((short[]) array).length);
+   }
+
+   @Test
+   public void releasedArrayIsTakenAgain() {
+      BufferPool pool = new BufferPool(Long.MAX_VALUE);
+      short[] array = (short[]) pool.take(short[].class, LENGTH);
+      pool.release(array);
+      assertSame(array, pool.take(short[].class, LENGTH));
+      //and only once
+      assertNotSame(array, pool.take(short[].class, LENGTH));
+   }
+
+   @Test
+   public void bucketsAreByExactLengthAndClass() {
+      BufferPool pool = new BufferPool(Long.MAX_VALUE);
+      short[] array = (short[]) pool.take(short[].class, LENGTH);
+      pool.release(array);
+      assertNotSame(array, pool.take(short[].class, LENGTH + 1));
+      assertNotSame(array, pool.take(short[].class, LENGTH - 1));
+      assertEquals(LENGTH, ((int[]) pool.take(int[].class, LENGTH)).length);
+      assertSame(array, pool.take(short[].class, LENGTH));
+   }
+
+   @Test
+   public void smallArraysAreNotPooled() {
+      BufferPool pool = new BufferPool(Long.MAX_VALUE);
+      byte[] array = (byte[]) pool.take(byte[].class, 16);
+      pool.release(array);
+      assertNotSame(array, pool.take(byte[].class, 16));
+   }
+
+   @Test
+   public void nothingPooledBeyondMaxBytes() {
+      BufferPool pool = new BufferPool(LENGTH);
+      byte[] first = (byte[]) pool.take(byte[].class, LENGTH);
+      byte[] second = (byte[]) pool.take(byte[].class, LENGTH);
+      pool.release(first);
+      pool.release(second);
+      assertSame(first, pool.take(byte[].class, LENGTH));
+      assertNotSame(second, pool.take(byte[].class, LENGTH));
+   }
+
+   @Test
+   public void noMaxBytesClearsThePool() {
+      BufferPool pool = new BufferPool(Long.MAX_VALUE);
+      byte[] array = (byte[]) pool.take(byte[].class, LENGTH);
+      pool.release(array);
+      pool.setMaxBytes(0);
+      assertNotSame(array, pool.take(byte[].class, LENGTH));
+      pool.release(array);
+      assertNotSame(array, pool.take(byte[].class, LENGTH));
+   }
+
+   @Test
+   public void scratchArraysAreRoundedUpAndReused() {
+      BufferPool pool = new BufferPool(Long.MAX_VALUE);
+      byte[] scratch = pool.takeScratch(100000);
+      assertEquals(131072, scratch.length);
+      pool.release(scratch);
+      assertSame(scratch, pool.takeScratch(70000));
+   }
+
+   @Test
+   public void statisticsCountAllocationsAndReuses() throws Exception {
+      BufferPool pool = new BufferPool(Long.MAX_VALUE);
+      for (int i = 0; i < 10; i++) {
+         pool.release(pool.take(float[].class, LENGTH));
+      }
+      JSONObject stats = pool.getStatistics();
+      assertEquals(1, stats.getLong("allocations"));
+      assertEquals(4L * LENGTH, stats.getLong("allocated-bytes"));
+      assertEquals(9, stats.getLong("reuses"));
+      assertEquals(4L * LENGTH, stats.getLong("pooled-bytes"));
+      assertTrue(stats.has("gc-count"));
+   }
+
+   @Test
+   public void decodedArraysComeFromTheDefaultPool() {
+      byte[] raw = new byte[2 * LENGTH];
+      for (int i = 0; i < raw.length; i++) {
+         raw[i] = (byte) i;
+      }
+      short[] decoded = (short[]) ZMQUtil.fromByteArray(raw, short[].class, ByteOrder.LITTLE_ENDIAN);
+      assertEquals((short) 0x0100, decoded[0]);
+      BufferPool.getDefault().release(decoded);
+      short[] again = (short[]) ZMQUtil.fromByteArray(raw, short[].class, ByteOrder.BIG_ENDIAN);
+      assertSame(decoded, again);
+      assertEquals((short) 0x0001, again[0]);
+      BufferPool.getDefault().release(again);
+   }
+
+}
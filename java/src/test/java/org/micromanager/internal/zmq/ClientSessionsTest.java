@@ -0,0 +1,159 @@
+package org.micromanager.internal.zmq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class ClientSessionsTest {
+
+   private static JSONObject stats(String clientID) throws Exception {
+      JSONArray all = ClientSessions.getStats();
+      for (int i = 0; i < all.length(); i++) {
+         if (all.getJSONObject(i).getString("client-id").equals(clientID)) {
+            return all.getJSONObject(i);
+         }
+      }
+      return null;
+   }
+
+   @Test
+   public void sameSessionForSameClient() {
+      assertSame(ClientSessions.getSession("same"), ClientSessions.getSession("same"));
+      ClientSessions.release("same");
+   }
+
+   @Test
+   public void releaseRemovesEverythingTheClientHolds() throws Exception {
+      ClientSessions.Session session = ClientSessions.getSession("release");
+      long first = ZMQUtil.EXTERNAL_OBJECTS.add(new Object(), session);
+      long second = ZMQUtil.EXTERNAL_OBJECTS.add(new Object(), session);
+      long unowned = ZMQUtil.EXTERNAL_OBJECTS.add(new Object());
+      assertEquals(2, stats("release").getInt("live-handles"));
+      assertEquals(2, ClientSessions.release("release"));
+      assertNull(ZMQUtil.EXTERNAL_OBJECTS.get(first));
+      assertNull(ZMQUtil.EXTERNAL_OBJECTS.get(second));
+      assertNotNull(ZMQUtil.EXTERNAL_OBJECTS.remove(unowned));
+      assertNull(stats("release"));
+      assertEquals(0, ClientSessions.release("release"));
+   }
+
+   @Test
+   public void removedHandlesNoLongerCount() throws Exception {
+      ClientSessions.Session session = ClientSessions.getSession("removed");
+      long handle = ZMQUtil.EXTERNAL_OBJECTS.add(new byte[1000], session);
+      assertEquals(1016, stats("removed").getLong("retained-bytes"));
+      ZMQUtil.EXTERNAL_OBJECTS.remove(handle);
+      assertEquals(0, stats("removed").getInt("live-handles"));
+      assertEquals(0, stats("removed").getLong("retained-bytes"));
+      ClientSessions.release("removed");
+   }
+
+   @Test
+   public void retainedBytesLimit() throws Exception {
+      ClientSessions.Session session = ClientSessions.getSession("limit");
+      session.setMaxRetainedBytes(3000);
+      ZMQUtil.EXTERNAL_OBJECTS.add(new short[500], session);
+      ZMQUtil.EXTERNAL_OBJECTS.add(new short[500], session);
+      try {
+         ZMQUtil.EXTERNAL_OBJECTS.add(new short[500], session);
+         fail("Exported beyond the limit");
+      } catch (RuntimeException expected) {
+      }
+      assertEquals(2, ClientSessions.release("limit"));
+   }
+
+   @Test
+   public void releasedSessionTakesNoMoreObjects() throws Exception {
+      ClientSessions.Session session = ClientSessions.getSession("closed");
+      ClientSessions.release("closed");
+      int size = ZMQUtil.EXTERNAL_OBJECTS.size();
+      try {
+         ZMQUtil.EXTERNAL_OBJECTS.add(new Object(), session);
+         fail("Exported to a released session");
+      } catch (RuntimeException expected) {
+      }
+      assertEquals(size, ZMQUtil.EXTERNAL_OBJECTS.size());
+      assertFalse(session.renew());
+      //the client gets a new session with its next request
+      ClientSessions.Session next = ClientSessions.getSession("closed");
+      assertNotSame(session, next);
+      long handle = ZMQUtil.EXTERNAL_OBJECTS.add(new Object(), next);
+      assertEquals(1, ClientSessions.release("closed"));
+      assertNull(ZMQUtil.EXTERNAL_OBJECTS.get(handle));
+   }
+
+   @Test
+   public void exportsRacingWithReleaseAreNeverLeft() throws Exception {
+      for (int round = 0; round < 20; round++) {
+         ClientSessions.Session session = ClientSessions.getSession("race");
+         List<Long> exported = Collections.synchronizedList(new ArrayList<Long>());
+         Thread exporter = new Thread(() -> {
+            for (int i = 0; i < 1000; i++) {
+               try {
+                  exported.add(ZMQUtil.EXTERNAL_OBJECTS.add(new Object(), session));
+               } catch (RuntimeException closed) {
+                  return;
+               }
+            }
+         });
+         exporter.start();
+         ClientSessions.release("race");
+         exporter.join();
+         //everything that was exported to the session has been released
+         for (long handle : exported) {
+            assertNull(ZMQUtil.EXTERNAL_OBJECTS.get(handle));
+         }
+      }
+   }
+
+   @Test
+   public void estimateCountsPrimitiveArrayFields() {
+      class Image {
+
+         private final short[] pix = new short[100];
+         private final Object other = new int[100];
+      }
+      assertEquals(16 + 16 + 200, ClientSessions.estimateSize(new Image()));
+      assertEquals(16 + 800, ClientSessions.estimateSize(new double[100]));
+   }
+
+   @Test
+   public void expiredLeaseReleasesObjects() throws Exception {
+      ClientSessions.Session session = ClientSessions.getSession("lease");
+      long handle = ZMQUtil.EXTERNAL_OBJECTS.add(new Object(), session);
+      session.setLeaseMs(50);
+      long deadline = System.currentTimeMillis() + 5000;
+      while (ZMQUtil.EXTERNAL_OBJECTS.get(handle) != null) {
+         if (System.currentTimeMillis() > deadline) {
+            fail("Lease never expired");
+         }
+         Thread.sleep(50);
+      }
+      assertNull(stats("lease"));
+   }
+
+   @Test
+   public void renewedLeaseKeepsObjects() throws Exception {
+      ClientSessions.Session session = ClientSessions.getSession("renewed");
+      long handle = ZMQUtil.EXTERNAL_OBJECTS.add(new Object(), session);
+      session.setLeaseMs(1000);
+      //requests keep coming for longer than the lease
+      for (int i = 0; i < 15; i++) {
+         Thread.sleep(100);
+         ClientSessions.getSession("renewed");
+      }
+      assertNotNull(ZMQUtil.EXTERNAL_OBJECTS.get(handle));
+      ClientSessions.release("renewed");
+   }
+
+}
@@ -0,0 +1,65 @@
+package org.micromanager.internal.zmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+public class HandleTableTest {
+
+   @Test
+   public void addGetRemove() {
+      HandleTable table = new HandleTable();
+      Object o = new Object();
+      long handle = table.add(o);
+      assertSame(o, table.get(handle));
+      assertSame(o, table.get(HandleTable.toHashCode(handle)));
+      assertEquals(1, table.size());
+      assertSame(o, table.remove(handle));
+      assertNull(table.get(handle));
+      assertNull(table.remove(handle));
+      assertEquals(0, table.size());
+   }
+
+   @Test
+   public void staleHandleDoesNotFindReusedSlot() {
+      HandleTable table = new HandleTable();
+      long first = table.add("first");
+      table.remove(first);
+      long second = table.add("second");
+      //same slot, new sequence number
+      assertEquals(first & 0xffffffffL, second & 0xffffffffL);
+      assertNotEquals(first, second);
+      assertNull(table.get(first));
+      assertNull(table.remove(first));
+      assertEquals("second", table.get(second));
+   }
+
+   @Test
+   public void growsPastInitialCapacity() {
+      HandleTable table = new HandleTable();
+      long[] handles = new long[1000];
+      for (int i = 0; i < handles.length; i++) {
+         handles[i] = table.add(i);
+      }
+      for (int i = 0; i < handles.length; i += 2) {
+         table.remove(handles[i]);
+      }
+      for (int i = 1; i < handles.length; i += 2) {
+         assertEquals(i, table.get(handles[i]));
+      }
+      assertEquals(500, table.size());
+   }
+
+   @Test
+   public void invalidHashCodes() {
+      HandleTable table = new HandleTable();
+      table.add("o");
+      assertNull(table.get("not a number"));
+      assertNull(table.get("0"));
+      assertNull(table.get("-1"));
+      assertNull(table.remove("12abc"));
+   }
+
+}
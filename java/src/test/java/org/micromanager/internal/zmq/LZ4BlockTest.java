@@ -0,0 +1,78 @@
+package org.micromanager.internal.zmq;
+
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class LZ4BlockTest {
+
+   private static void assertRoundTrip(byte[] data) {
+      byte[] compressed = LZ4Block.compress(data);
+      assertTrue(compressed.length <= LZ4Block.maxCompressedLength(data.length));
+      byte[] decompressed = LZ4Block.decompress(compressed, data.length);
+      assertArrayEquals(data, Arrays.copyOf(decompressed, data.length));
+   }
+
+   @Test
+   public void emptyAndTiny() {
+      assertRoundTrip(new byte[0]);
+      assertRoundTrip(new byte[]{1});
+      assertRoundTrip(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+   }
+
+   @Test
+   public void randomData() {
+      byte[] data = new byte[100000];
+      new Random(0).nextBytes(data);
+      assertRoundTrip(data);
+   }
+
+   @Test
+   public void runsCompress() {
+      byte[] data = new byte[100000];
+      Arrays.fill(data, (byte) 7);
+      byte[] compressed = LZ4Block.compress(data);
+      assertTrue(compressed.length < 1000);
+      assertRoundTrip(data);
+   }
+
+   @Test
+   public void shortRepeatsOverlap() {
+      //matches closer than their length are copied byte by byte
+      byte[] data = new byte[5000];
+      for (int i = 0; i < data.length; i++) {
+         data[i] = (byte) (i % 3);
+      }
+      assertRoundTrip(data);
+   }
+
+   @Test
+   public void mixedLiteralsAndMatches() {
+      Random random = new Random(1);
+      byte[] data = new byte[200000];
+      for (int i = 0; i < data.length; i++) {
+         //stretches of noise between repeats, and some far apart matches
+         data[i] = (i / 300) % 2 == 0 ? (byte) random.nextInt() : (byte) (i % 40);
+      }
+      assertRoundTrip(data);
+   }
+
+   @Test
+   public void compressesOnlyTheGivenLength() {
+      byte[] data = new byte[1000];
+      new Random(2).nextBytes(data);
+      byte[] compressed = LZ4Block.compress(data, 600);
+      byte[] decompressed = LZ4Block.decompress(compressed, 600);
+      assertArrayEquals(Arrays.copyOf(data, 600), Arrays.copyOf(decompressed, 600));
+   }
+
+   @Test(expected = RuntimeException.class)
+   public void wrongLengthIsRejected() {
+      byte[] data = new byte[1000];
+      Arrays.fill(data, (byte) 3);
+      LZ4Block.decompress(LZ4Block.compress(data), 999);
+   }
+
+}
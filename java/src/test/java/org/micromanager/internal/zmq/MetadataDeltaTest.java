@@ -0,0 +1,119 @@
+package org.micromanager.internal.zmq;
+
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class MetadataDeltaTest {
+
+   private static JSONObject tags(int frame) throws Exception {
+      JSONObject tags = new JSONObject();
+      tags.put("Camera", "Cam");
+      tags.put("Exposure", 10.0);
+      tags.put("Frame", frame);
+      tags.put("Axes", new JSONObject().put("time", frame));
+      return tags;
+   }
+
+   private static JSONObject encode(MetadataDelta.Encoder encoder, JSONObject tags)
+           throws Exception {
+      JSONObject message = new JSONObject();
+      encoder.encode(tags, message);
+      return message;
+   }
+
+   private static void assertSameTags(JSONObject expected, JSONObject actual) throws Exception {
+      assertEquals(expected.length(), actual.length());
+      for (String key : JSONObject.getNames(expected)) {
+         assertEquals(key, expected.get(key).toString(), actual.get(key).toString());
+      }
+   }
+
+   @Test
+   public void firstMessageIsKeyframe() throws Exception {
+      JSONObject message = encode(new MetadataDelta.Encoder(10), tags(0));
+      assertTrue(message.has("metadata"));
+      assertEquals(0, message.getLong("metadata-keyframe"));
+      assertTrue(MetadataDelta.Decoder.isEncoded(message));
+   }
+
+   @Test
+   public void deltaOnlyHoldsChangedKeys() throws Exception {
+      MetadataDelta.Encoder encoder = new MetadataDelta.Encoder(10);
+      encode(encoder, tags(0));
+      JSONObject message = encode(encoder, tags(1));
+      assertFalse(message.has("metadata"));
+      JSONObject delta = message.getJSONObject("metadata-delta");
+      assertEquals(2, delta.length());
+      assertEquals(1, delta.getInt("Frame"));
+      assertEquals(1, delta.getJSONObject("Axes").getInt("time"));
+      assertFalse(message.has("metadata-removed"));
+   }
+
+   @Test
+   public void roundTripWithKeyframes() throws Exception {
+      MetadataDelta.Encoder encoder = new MetadataDelta.Encoder(3);
+      MetadataDelta.Decoder decoder = new MetadataDelta.Decoder();
+      for (int i = 0; i < 10; i++) {
+         JSONObject tags = tags(i);
+         JSONObject message = encode(encoder, tags);
+         assertEquals(i % 3 == 0, message.has("metadata"));
+         assertEquals(i / 3, message.getLong("metadata-keyframe"));
+         assertSameTags(tags, decoder.decode(message));
+      }
+   }
+
+   @Test
+   public void addedAndRemovedKeys() throws Exception {
+      MetadataDelta.Encoder encoder = new MetadataDelta.Encoder(10);
+      MetadataDelta.Decoder decoder = new MetadataDelta.Decoder();
+      decoder.decode(encode(encoder, tags(0)));
+      JSONObject tags = tags(1);
+      tags.remove("Camera");
+      tags.put("Binning", 2);
+      JSONObject message = encode(encoder, tags);
+      JSONArray removed = message.getJSONArray("metadata-removed");
+      assertEquals(1, removed.length());
+      assertEquals("Camera", removed.getString(0));
+      assertSameTags(tags, decoder.decode(message));
+   }
+
+   @Test(expected = RuntimeException.class)
+   public void deltaWithoutItsKeyframeIsRejected() throws Exception {
+      MetadataDelta.Encoder encoder = new MetadataDelta.Encoder(10);
+      encode(encoder, tags(0));
+      new MetadataDelta.Decoder().decode(encode(encoder, tags(1)));
+   }
+
+   @Test
+   public void decodedTagsShareNoNestedValues() throws Exception {
+      MetadataDelta.Encoder encoder = new MetadataDelta.Encoder(10);
+      MetadataDelta.Decoder decoder = new MetadataDelta.Decoder();
+      JSONObject tags = tags(0);
+      tags.put("Summary", new JSONObject().put("Prefix", "acq"));
+      JSONObject keyframe = decoder.decode(encode(encoder, tags));
+      keyframe.getJSONObject("Summary").put("Prefix", "changed");
+      tags.put("Frame", 1);
+      JSONObject next = decoder.decode(encode(encoder, tags));
+      assertEquals("acq", next.getJSONObject("Summary").getString("Prefix"));
+      next.getJSONObject("Summary").put("Prefix", "changed again");
+      tags.put("Frame", 2);
+      assertEquals("acq", decoder.decode(encode(encoder, tags))
+              .getJSONObject("Summary").getString("Prefix"));
+   }
+
+   @Test
+   public void decodersAreKeptPerSender() throws Exception {
+      MetadataDelta.Encoder first = new MetadataDelta.Encoder(10);
+      MetadataDelta.Encoder second = new MetadataDelta.Encoder(10);
+      MetadataDelta.Decoders decoders = new MetadataDelta.Decoders();
+      decoders.decode("a", encode(first, tags(0)));
+      decoders.decode("b", encode(second, tags(100)));
+      assertEquals(1, decoders.decode("a", encode(first, tags(1))).getInt("Frame"));
+      assertEquals(101, decoders.decode("b", encode(second, tags(101))).getInt("Frame"));
+   }
+
+}
@@ -0,0 +1,124 @@
+package org.micromanager.internal.zmq;
+
+import java.lang.reflect.InvocationTargetException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class MethodInvokerTest {
+
+   public static class Target {
+
+      public int value;
+
+      public Target() {
+      }
+
+      public Target(int value) {
+         this.value = value;
+      }
+
+      public int add(int a, long b) {
+         return (int) (value + a + b);
+      }
+
+      public void nothing() {
+      }
+
+      public String join(String a, Object b) {
+         return a + b;
+      }
+
+      public void fail(String message) {
+         throw new IllegalStateException(message);
+      }
+
+      public void error() {
+         throw new AssertionError("broken");
+      }
+
+      public int recurse(int depth) {
+         return recurse(depth + 1) + 1;
+      }
+
+      public static int square(int x) {
+         return x * x;
+      }
+   }
+
+   private static MethodInvoker invoker(String name, Class... types) throws Exception {
+      return new MethodInvoker(Target.class.getMethod(name, types));
+   }
+
+   private static Throwable targetException(MethodInvoker invoker, Object receiver,
+           Object... args) throws Exception {
+      try {
+         invoker.invoke(receiver, args);
+      } catch (InvocationTargetException e) {
+         return e.getCause();
+      }
+      fail("Nothing thrown");
+      return null;
+   }
+
+   @Test
+   public void callsWithBoxedArguments() throws Exception {
+      Target target = new Target(1);
+      assertEquals(6, invoker("add", int.class, long.class).invoke(target, new Object[]{2, 3L}));
+      assertEquals("a1", invoker("join", String.class, Object.class)
+              .invoke(target, new Object[]{"a", 1}));
+      assertEquals("anull", invoker("join", String.class, Object.class)
+              .invoke(target, new Object[]{"a", null}));
+      assertNull(invoker("nothing").invoke(target, new Object[0]));
+   }
+
+   @Test
+   public void staticMethodsAndConstructors() throws Exception {
+      assertEquals(49, invoker("square", int.class).invoke(null, new Object[]{7}));
+      Object constructed = new MethodInvoker(Target.class.getConstructor(int.class))
+              .invoke(null, new Object[]{5});
+      assertEquals(5, ((Target) constructed).value);
+   }
+
+   @Test
+   public void exceptionsOfTheMethodAreWrapped() throws Exception {
+      Throwable cause = targetException(invoker("fail", String.class), new Target(), "no");
+      assertTrue(cause instanceof IllegalStateException);
+      assertEquals("no", cause.getMessage());
+   }
+
+   @Test
+   public void errorsOfTheMethodAreWrapped() throws Exception {
+      assertTrue(targetException(invoker("error"), new Target()) instanceof AssertionError);
+      assertTrue(targetException(invoker("recurse", int.class), new Target(), 0)
+              instanceof StackOverflowError);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void wrongNumberOfArguments() throws Exception {
+      invoker("add", int.class, long.class).invoke(new Target(), new Object[]{1});
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void wrongArgumentType() throws Exception {
+      invoker("add", int.class, long.class).invoke(new Target(), new Object[]{1, 2});
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void nullForPrimitive() throws Exception {
+      invoker("square", int.class).invoke(null, new Object[]{null});
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void wrongReceiver() throws Exception {
+      invoker("nothing").invoke("not a target", new Object[0]);
+   }
+
+   @Test(expected = NullPointerException.class)
+   public void missingReceiver() throws Exception {
+      invoker("nothing").invoke(null, new Object[0]);
+   }
+
+}
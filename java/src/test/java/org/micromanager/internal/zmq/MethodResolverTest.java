@@ -0,0 +1,131 @@
+package org.micromanager.internal.zmq;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+public class MethodResolverTest {
+
+   private final MethodResolver resolver_ = new MethodResolver();
+
+   public static class Overloads {
+
+      public String size;
+
+      public Overloads() {
+         size = "none";
+      }
+
+      public Overloads(int size) {
+         this.size = "int";
+      }
+
+      public Overloads(String size) {
+         this.size = "String";
+      }
+
+      public String call(int i) {
+         return "int";
+      }
+
+      public String call(long l) {
+         return "long";
+      }
+
+      public String call(Object o) {
+         return "Object";
+      }
+
+      public String call(CharSequence s) {
+         return "CharSequence";
+      }
+
+      public String call(List<?> list) {
+         return "List";
+      }
+
+      public String call(String s, int i) {
+         return "String,int";
+      }
+
+      public static String twice(String s) {
+         return s + s;
+      }
+   }
+
+   private Object call(String[] argTypes, Object... args) throws Exception {
+      return resolver_.resolveMethod(Overloads.class, "call", argTypes, args)
+              .invoke(new Overloads(), args);
+   }
+
+   @Test
+   public void typeNamesFromClientPickTheOverload() throws Exception {
+      assertEquals("int", call(new String[]{"int"}, 1));
+      assertEquals("long", call(new String[]{"long"}, 1L));
+      assertEquals("Object", call(new String[]{"java.lang.Object"}, "s"));
+      assertEquals("CharSequence", call(new String[]{"java.lang.CharSequence"}, "s"));
+      assertEquals("String,int", call(new String[]{"java.lang.String", "int"}, "s", 1));
+   }
+
+   @Test
+   public void mostSpecificWithoutTypeNames() throws Exception {
+      assertEquals("CharSequence", call(null, "s"));
+      assertEquals("List", call(null, new ArrayList<Object>()));
+      assertEquals("Object", call(null, new Object()));
+      assertEquals("int", call(null, 3));
+      assertEquals("long", call(null, 3L));
+   }
+
+   @Test
+   public void unknownTypeNamesFallBackToArguments() throws Exception {
+      assertEquals("CharSequence", call(new String[]{"str"}, "s"));
+   }
+
+   @Test
+   public void nullArgumentDoesNotMatchPrimitive() throws Exception {
+      assertEquals("List", call(new String[]{"java.util.List"}, (Object) null));
+   }
+
+   @Test
+   public void resolvedInvokerIsReused() throws Exception {
+      Object[] args = {"s"};
+      MethodInvoker first = resolver_.resolveMethod(Overloads.class, "call", null, args);
+      assertSame(first, resolver_.resolveMethod(Overloads.class, "call", null, args));
+      //different key, same method
+      assertSame(first, resolver_.resolveMethod(Overloads.class, "call",
+              new String[]{"java.lang.CharSequence"}, args));
+   }
+
+   @Test
+   public void staticMethod() throws Exception {
+      Object[] args = {"ab"};
+      assertEquals("abab", resolver_.resolveMethod(Overloads.class, "twice", null, args)
+              .invoke(null, args));
+   }
+
+   @Test
+   public void constructors() throws Exception {
+      Object[] none = {};
+      Object[] number = {5};
+      Object[] text = {"5"};
+      assertEquals("none", ((Overloads) resolver_.resolveConstructor(Overloads.class,
+              new String[0], none).invoke(null, none)).size);
+      assertEquals("int", ((Overloads) resolver_.resolveConstructor(Overloads.class,
+              null, number).invoke(null, number)).size);
+      assertEquals("String", ((Overloads) resolver_.resolveConstructor(Overloads.class,
+              new String[]{"java.lang.String"}, text).invoke(null, text)).size);
+   }
+
+   @Test(expected = NoSuchMethodException.class)
+   public void wrongArgumentsAreRejected() throws Exception {
+      resolver_.resolveMethod(Overloads.class, "call", null, new Object[]{"s", "t"});
+   }
+
+   @Test(expected = NoSuchMethodException.class)
+   public void unknownMethod() throws Exception {
+      resolver_.resolveMethod(Overloads.class, "missing", null, new Object[0]);
+   }
+
+}
@@ -0,0 +1,98 @@
+package org.micromanager.internal.zmq;
+
+import java.io.File;
+import mmcorej.org.json.JSONObject;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SharedMemoryRingTest {
+
+   private SharedMemoryRing ring_;
+
+   @Before
+   public void setUp() throws Exception {
+      ring_ = new SharedMemoryRing(3, 1024);
+   }
+
+   @After
+   public void tearDown() {
+      ring_.close();
+   }
+
+   @Test
+   public void arrayRoundTrip() throws Exception {
+      short[] pixels = new short[512];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) (i * 7);
+      }
+      JSONObject header = ring_.put(pixels, 0);
+      assertEquals(0, header.getInt("shm-slot"));
+      assertArrayEquals(pixels, (short[]) ring_.get(header));
+   }
+
+   @Test
+   public void tooBigForASlot() throws Exception {
+      assertNull(ring_.put(new byte[1025], 0));
+   }
+
+   @Test
+   public void slotsAreUsedInTurn() throws Exception {
+      for (int i = 0; i < 6; i++) {
+         JSONObject header = ring_.put(new byte[16], 0);
+         assertEquals(i % 3, header.getInt("shm-slot"));
+         ring_.get(header);
+      }
+   }
+
+   @Test
+   public void fullSlotIsSkipped() throws Exception {
+      JSONObject never = ring_.put(new byte[16], 0);
+      assertEquals(0, never.getInt("shm-slot"));
+      //slot 0 is never freed, but the others keep being used
+      for (int i = 0; i < 4; i++) {
+         JSONObject header = ring_.put(new byte[16], 0);
+         assertEquals(1 + i % 2, header.getInt("shm-slot"));
+         ring_.get(header);
+      }
+   }
+
+   @Test
+   public void noFreeSlot() throws Exception {
+      for (int i = 0; i < 3; i++) {
+         assertNotNull(ring_.put(new byte[16], 0));
+      }
+      assertNull(ring_.put(new byte[16], 0));
+      assertNull(ring_.put(new byte[16], 20));
+      ring_.release(1);
+      assertEquals(1, ring_.put(new byte[16], 0).getInt("shm-slot"));
+   }
+
+   @Test(expected = RuntimeException.class)
+   public void invalidSlot() throws Exception {
+      JSONObject header = ring_.put(new byte[16], 0);
+      header.put("shm-slot", 3);
+      ring_.get(header);
+   }
+
+   @Test(expected = RuntimeException.class)
+   public void lengthBeyondSlot() throws Exception {
+      JSONObject header = ring_.put(new byte[16], 0);
+      header.put("shape", new mmcorej.org.json.JSONArray().put(2048));
+      ring_.get(header);
+   }
+
+   @Test
+   public void closeDeletesFileAndStopsPuts() throws Exception {
+      File file = new File(ring_.getDescriptor().getString("path"));
+      ring_.close();
+      assertFalse(file.exists());
+      assertNull(ring_.put(new byte[16], -1));
+   }
+
+}
@@ -0,0 +1,63 @@
+package org.micromanager.internal.zmq;
+
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ShuffleDeltaLZ4CodecTest {
+
+   private final ShuffleDeltaLZ4Codec codec_ = new ShuffleDeltaLZ4Codec();
+
+   private void assertRoundTrip(byte[] raw, int elementSize) {
+      byte[] encoded = codec_.encode(raw, elementSize);
+      byte[] decoded = codec_.decode(encoded, elementSize, raw.length);
+      assertArrayEquals(raw, Arrays.copyOf(decoded, raw.length));
+   }
+
+   @Test
+   public void roundTripForEveryElementSize() {
+      byte[] raw = new byte[4096];
+      new Random(0).nextBytes(raw);
+      for (int elementSize : new int[]{1, 2, 4, 8}) {
+         assertRoundTrip(raw, elementSize);
+      }
+   }
+
+   @Test
+   public void bytesBeyondTheLastWholeElement() {
+      byte[] raw = new byte[1001];
+      new Random(1).nextBytes(raw);
+      assertRoundTrip(raw, 2);
+      assertRoundTrip(raw, 4);
+   }
+
+   @Test
+   public void emptyArray() {
+      assertRoundTrip(new byte[0], 2);
+   }
+
+   @Test
+   public void smoothImageCompressesWell() {
+      //16 bit gradient with a little noise, like a camera image
+      Random random = new Random(2);
+      byte[] raw = new byte[2 * 256 * 256];
+      for (int i = 0; i < raw.length / 2; i++) {
+         int value = 1000 + (i % 256) * 4 + random.nextInt(4);
+         raw[2 * i] = (byte) value;
+         raw[2 * i + 1] = (byte) (value >> 8);
+      }
+      byte[] encoded = codec_.encode(raw, 2);
+      assertTrue(encoded.length < raw.length / 2);
+      assertRoundTrip(raw, 2);
+   }
+
+   @Test
+   public void registeredByName() {
+      assertSame(ShuffleDeltaLZ4Codec.class,
+              ArrayCodecs.get(ShuffleDeltaLZ4Codec.NAME).getClass());
+   }
+
+}
@@ -0,0 +1,83 @@
+package org.micromanager.remote;
+
+import mmcorej.org.json.JSONObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class EventFilterTest {
+
+   private static JSONObject event(String axes) throws Exception {
+      return new JSONObject("{\"axes\": " + axes + "}");
+   }
+
+   private static EventFilter filter(String spec) throws Exception {
+      return new EventFilter(new JSONObject(spec));
+   }
+
+   @Test
+   public void emptyFilterMatchesEverything() throws Exception {
+      EventFilter filter = filter("{}");
+      assertTrue(filter.matches(new JSONObject()));
+      assertTrue(filter.matches(event("{\"z\": 3}")));
+   }
+
+   @Test
+   public void axisEqualToValue() throws Exception {
+      EventFilter filter = filter("{\"axes\": {\"z\": 0}}");
+      assertTrue(filter.matches(event("{\"z\": 0, \"time\": 4}")));
+      assertTrue(filter.matches(event("{\"z\": 0.0}")));
+      assertFalse(filter.matches(event("{\"z\": 1}")));
+      assertFalse(filter.matches(event("{\"time\": 0}")));
+      assertFalse(filter.matches(new JSONObject()));
+   }
+
+   @Test
+   public void axisOneOfValues() throws Exception {
+      EventFilter filter = filter("{\"axes\": {\"channel\": [\"DAPI\", \"FITC\"]}}");
+      assertTrue(filter.matches(event("{\"channel\": \"DAPI\"}")));
+      assertTrue(filter.matches(event("{\"channel\": \"FITC\"}")));
+      assertFalse(filter.matches(event("{\"channel\": \"Cy5\"}")));
+   }
+
+   @Test
+   public void axisRangeAndStep() throws Exception {
+      EventFilter filter = filter("{\"axes\": {\"time\": {\"min\": 5, \"max\": 25, \"every\": 10}}}");
+      assertFalse(filter.matches(event("{\"time\": 0}")));
+      assertTrue(filter.matches(event("{\"time\": 5}")));
+      assertFalse(filter.matches(event("{\"time\": 10}")));
+      assertTrue(filter.matches(event("{\"time\": 15}")));
+      assertTrue(filter.matches(event("{\"time\": 25}")));
+      assertFalse(filter.matches(event("{\"time\": 35}")));
+      assertFalse(filter.matches(event("{\"time\": \"late\"}")));
+   }
+
+   @Test(expected = RuntimeException.class)
+   public void stepWithoutMinIsRejected() throws Exception {
+      filter("{\"axes\": {\"time\": {\"every\": 10}}}");
+   }
+
+   @Test
+   public void requiredKeys() throws Exception {
+      EventFilter filter = filter("{\"has\": [\"z\"]}");
+      assertTrue(filter.matches(new JSONObject("{\"z\": 1.5}")));
+      assertFalse(filter.matches(event("{\"z\": 1}")));
+   }
+
+   @Test
+   public void everyNthMatchingEvent() throws Exception {
+      EventFilter filter = filter("{\"axes\": {\"z\": 0}, \"every\": 3}");
+      int matched = 0;
+      for (int i = 0; i < 9; i++) {
+         //events that fail the other conditions aren't counted
+         assertFalse(filter.matches(event("{\"z\": 1}")));
+         if (filter.matches(event("{\"z\": 0}"))) {
+            assertEquals(0, i % 3);
+            matched++;
+         }
+      }
+      assertEquals(3, matched);
+   }
+
+}
@@ -0,0 +1,103 @@
+package org.micromanager.remote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.acqj.api.AcquisitionEvent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class EventSpecTest {
+
+   /**
+    * JSON of every event a spec without a finished event expands to
+    */
+   private static List<JSONObject> expand(EventSpec spec) throws Exception {
+      List<JSONObject> events = new ArrayList<JSONObject>();
+      while (spec.hasNext()) {
+         events.add(spec.next().toJSON());
+      }
+      return events;
+   }
+
+   private static EventSpec spec(String json) throws Exception {
+      return new EventSpec(new JSONObject(json), null);
+   }
+
+   @Test
+   public void outermostAxisFirst() throws Exception {
+      List<JSONObject> events = expand(spec("{\"axes\": ["
+              + "{\"name\": \"time\", \"count\": 2},"
+              + "{\"name\": \"z\", \"count\": 3, \"start\": -1}]}"));
+      assertEquals(6, events.size());
+      int i = 0;
+      for (int t = 0; t < 2; t++) {
+         for (int z = -1; z < 2; z++) {
+            JSONObject axes = events.get(i++).getJSONObject("axes");
+            assertEquals(t, axes.getInt("time"));
+            assertEquals(z, axes.getInt("z"));
+         }
+      }
+   }
+
+   @Test
+   public void fieldsStepAlongTheirAxis() throws Exception {
+      List<JSONObject> events = expand(spec("{\"axes\": [{\"name\": \"z\", \"count\": 4,"
+              + " \"fields\": {\"z\": {\"start\": -10, \"step\": 0.5}}}],"
+              + " \"template\": {\"exposure\": 10}}"));
+      assertEquals(4, events.size());
+      for (int i = 0; i < 4; i++) {
+         assertEquals(-10 + 0.5 * i, events.get(i).getDouble("z"), 0);
+         assertEquals(10, events.get(i).getDouble("exposure"), 0);
+      }
+   }
+
+   @Test
+   public void explicitValuesAndFieldValues() throws Exception {
+      List<JSONObject> events = expand(spec("{\"axes\": [{\"name\": \"channel\","
+              + " \"values\": [\"DAPI\", \"FITC\"],"
+              + " \"field-values\": [{\"exposure\": 5}, {\"exposure\": 20}]}]}"));
+      assertEquals(2, events.size());
+      assertEquals("DAPI", events.get(0).getJSONObject("axes").getString("channel"));
+      assertEquals(5, events.get(0).getDouble("exposure"), 0);
+      assertEquals("FITC", events.get(1).getJSONObject("axes").getString("channel"));
+      assertEquals(20, events.get(1).getDouble("exposure"), 0);
+   }
+
+   @Test
+   public void emptyAxisMeansNoEvents() throws Exception {
+      EventSpec spec = spec("{\"axes\": [{\"name\": \"time\", \"count\": 3},"
+              + " {\"name\": \"z\", \"count\": 0}]}");
+      assertFalse(spec.hasNext());
+   }
+
+   @Test
+   public void finishedEventComesLast() throws Exception {
+      EventSpec spec = spec("{\"axes\": [{\"name\": \"time\", \"count\": 2}], \"finished\": true}");
+      assertTrue(spec.isFinished());
+      assertFalse(spec.next().isAcquisitionFinishedEvent());
+      assertFalse(spec.next().isAcquisitionFinishedEvent());
+      //axes exhausted, the finished event is still to come
+      assertTrue(spec.hasNext());
+      assertTrue(spec.next().isAcquisitionFinishedEvent());
+      assertFalse(spec.hasNext());
+   }
+
+   @Test(expected = NoSuchElementException.class)
+   public void nothingAfterTheLastEvent() throws Exception {
+      EventSpec spec = spec("{\"axes\": [{\"name\": \"time\", \"count\": 2}]}");
+      spec.next();
+      spec.next();
+      assertFalse(spec.hasNext());
+      spec.next();
+   }
+
+   @Test(expected = RuntimeException.class)
+   public void tooFewFieldValuesAreRejected() throws Exception {
+      spec("{\"axes\": [{\"name\": \"z\", \"count\": 3, \"field-values\": [{}, {}]}]}");
+   }
+
+}
@@ -0,0 +1,67 @@
+package org.micromanager.remote;
+
+import mmcorej.org.json.JSONObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+public class PrefetchedEventsTest {
+
+   private static JSONObject event(int time, int z) throws Exception {
+      JSONObject axes = new JSONObject();
+      axes.put("time", time);
+      axes.put("z", z);
+      JSONObject event = new JSONObject();
+      event.put("axes", axes);
+      event.put("z", z * 1.5);
+      return event;
+   }
+
+   @Test
+   public void copiesFindTheAnswerOfTheSubmittedEvent() throws Exception {
+      PrefetchedEvents<String> prefetched = new PrefetchedEvents<String>();
+      prefetched.add(event(0, 0), "a");
+      prefetched.add(event(0, 1), "b");
+      //a different object with the same axes and positions, as run by the engine
+      assertEquals("a", prefetched.take(event(0, 0)));
+      assertEquals("b", prefetched.take(event(0, 1)));
+      assertEquals(0, prefetched.size());
+   }
+
+   @Test
+   public void sequencedEventsTakeTheirPartsAndEvictSkippedOnes() throws Exception {
+      PrefetchedEvents<String> prefetched = new PrefetchedEvents<String>();
+      for (int z = 0; z < 5; z++) {
+         prefetched.add(event(0, z), "z" + z);
+      }
+      //z0 was deleted by an earlier hook, z1 to z3 merged into one sequence
+      for (int z = 1; z <= 3; z++) {
+         assertEquals("z" + z, prefetched.take(event(0, z)));
+      }
+      assertEquals(1, prefetched.size());
+      assertNull(prefetched.take(event(0, 0)));
+      assertEquals("z4", prefetched.take(event(0, 4)));
+   }
+
+   @Test
+   public void unknownEventsLeaveTheRest() throws Exception {
+      PrefetchedEvents<String> prefetched = new PrefetchedEvents<String>();
+      prefetched.add(event(0, 0), "a");
+      prefetched.add(event(1, 0), "b");
+      //e.g. created by the engine, or changed by an earlier hook
+      assertNull(prefetched.take(event(5, 5)));
+      assertEquals(2, prefetched.size());
+      assertEquals("b", prefetched.take(event(1, 0)));
+      assertEquals(0, prefetched.size());
+   }
+
+   @Test
+   public void repeatedEventsAreAnsweredInOrder() throws Exception {
+      PrefetchedEvents<String> prefetched = new PrefetchedEvents<String>();
+      prefetched.add(event(0, 0), "first");
+      prefetched.add(event(0, 0), "second");
+      assertEquals("first", prefetched.take(event(0, 0)));
+      assertEquals("second", prefetched.take(event(0, 0)));
+   }
+
+}